@@ -0,0 +1,56 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the running time of delta-stepping for several deltas and numbers of threads with a sequential Dijkstra
+ * (ShortestPathTree) on a seeded random network, and checks that all travel times are the same.
+ *
+ * Usage: java DeltaSteppingBenchmark [stations] [seed]
+ */
+public class DeltaSteppingBenchmark {
+	private static final int SOURCES = 5;
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+		Random random = new Random(seed);
+		TransportSystem system = new TransportSystem(TransportBenchmark.Topology.MIXED.generate(n, random));
+		int[] sources = new int[SOURCES];
+		int[][] expected = new int[SOURCES][];
+		long sequential = 0;
+		for (int s = 0; s < SOURCES; s++) {
+			sources[s] = random.nextInt(n);
+			long start = System.nanoTime();
+			ShortestPathTree tree = system.shortestPathTree(sources[s]);
+			sequential += System.nanoTime() - start;
+			expected[s] = new int[n];
+			for (int v = 0; v < n; v++) {
+				expected[s][v] = tree.getTime(v);
+			}
+			system.removeShortestPathTree(tree);
+		}
+		System.out.printf("%-8s %-8s %10s %8s%n", "delta", "threads", "ms/search", "speedup");
+		System.out.printf("%-8s %-8d %10.1f %8.2f%n", "dijkstra", 1, sequential / 1e6 / SOURCES, 1.0);
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (int delta : new int[] {10, 50, 200, 1000}) {
+			for (int threads = 1; threads <= processors; threads *= 2) {
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				// warm up the JIT
+				system.travelTimesFrom(sources[0], delta, pool);
+				long start = System.nanoTime();
+				for (int s = 0; s < SOURCES; s++) {
+					int[] times = system.travelTimesFrom(sources[s], delta, pool);
+					if (!Arrays.equals(times, expected[s])) {
+						throw new IllegalStateException("Delta-stepping differs from Dijkstra, delta " + delta);
+					}
+				}
+				long nanos = System.nanoTime() - start;
+				pool.shutdown();
+				System.out.printf("%-8d %-8d %10.1f %8.2f%n", delta, threads, nanos / 1e6 / SOURCES,
+						(double) sequential / nanos);
+			}
+		}
+	}
+}
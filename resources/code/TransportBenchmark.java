@@ -0,0 +1,224 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark of the route engines on seeded synthetic networks from 10^2 to 10^6 stations. For every topology, size
+ * and engine it prints the throughput, percentiles of the latency and the bytes allocated per query, so a regression
+ * shows up as a changed number. The same seed always produces the same networks and queries.
+ *
+ * Usage: java TransportBenchmark [max stations] [seed]
+ */
+public class TransportBenchmark {
+	private static final int MIN_STATIONS = 100;
+	private static final int MAX_STATIONS = 1_000_000;
+	// every size gets about the same total work, but at least MIN_QUERIES queries for the percentiles
+	private static final long WORK_PER_SIZE = 20_000_000;
+	private static final int MIN_QUERIES = 20;
+	private static final int MAX_QUERIES = 2_000;
+	private static final int LANDMARKS = 16;
+	// Bus, Tram and Train
+	private static final int MODES = 3;
+
+	enum Topology {
+		/**
+		 * Square grid, every station is connected to its 4 neighbours in both directions with random types.
+		 */
+		GRID,
+		/**
+		 * Barabási–Albert graph, every new station connects to 2 stations chosen with probability proportional to
+		 * their degree, so there are a few hubs with many connections.
+		 */
+		SCALE_FREE,
+		/**
+		 * Grid of bus connections with tram lines along every 8th row and column and a train network between hubs,
+		 * similar to a city with suburbs.
+		 */
+		MIXED,
+		/**
+		 * 3 connections with random targets and types per station.
+		 */
+		RANDOM;
+
+		List<Station> generate(int n, Random random) {
+			if (this == RANDOM) {
+				return randomNetwork(n, 3, random);
+			}
+			List<List<Connection>> connections = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				connections.add(new ArrayList<>());
+			}
+			switch (this) {
+				case GRID -> {
+					int width = (int) Math.ceil(Math.sqrt(n));
+					for (int i = 0; i < n; i++) {
+						if ((i + 1) % width != 0 && i + 1 < n) {
+							connectBoth(connections, i, i + 1, randomType(random), 1 + random.nextInt(10));
+						}
+						if (i + width < n) {
+							connectBoth(connections, i, i + width, randomType(random), 1 + random.nextInt(10));
+						}
+					}
+				}
+				case SCALE_FREE -> {
+					// every connection adds both ends, so a random element is a station chosen by degree
+					int[] ends = new int[4 * n];
+					int size = 0;
+					for (int i = 1; i < n; i++) {
+						for (int j = 0; j < Math.min(2, i); j++) {
+							int target = size == 0 ? 0 : ends[random.nextInt(size)];
+							connectBoth(connections, i, target, randomType(random), 1 + random.nextInt(15));
+							ends[size++] = i;
+							ends[size++] = target;
+						}
+					}
+				}
+				case MIXED -> {
+					int width = (int) Math.ceil(Math.sqrt(n));
+					for (int i = 0; i < n; i++) {
+						int row = i / width;
+						int column = i % width;
+						if (column + 1 < width && i + 1 < n) {
+							connectBoth(connections, i, i + 1, row % 8 == 0 ? 1 : 0, 1 + random.nextInt(5));
+						}
+						if (i + width < n) {
+							connectBoth(connections, i, i + width, column % 8 == 0 ? 1 : 0, 1 + random.nextInt(5));
+						}
+					}
+					// trains connect every hub with the next hub and a random other hub
+					int hubs = Math.max(2, n / 64);
+					for (int h = 0; h < hubs; h++) {
+						int from = (int) ((long) h * n / hubs);
+						int next = (int) ((long) (h + 1) % hubs * n / hubs);
+						int other = (int) ((long) random.nextInt(hubs) * n / hubs);
+						connectBoth(connections, from, next, 2, 8 + random.nextInt(20));
+						connectBoth(connections, from, other, 2, 8 + random.nextInt(40));
+					}
+				}
+				case RANDOM -> throw new AssertionError();
+			}
+			List<Station> stations = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				stations.add(new Station(i, null, connections.get(i)));
+			}
+			return stations;
+		}
+
+		private static int randomType(Random random) {
+			return random.nextInt(MODES);
+		}
+
+		private static void connectBoth(List<List<Connection>> connections, int a, int b, int type, int distance) {
+			connections.get(a).add(Connection.create(type, b, distance));
+			connections.get(b).add(Connection.create(type, a, distance));
+		}
+	}
+
+	enum Engine {
+		DIJKSTRA_HEAP, DIJKSTRA_BUCKETS, BIDIRECTIONAL, LANDMARKS;
+
+		Route route(TransportSystem system, int from, int to) {
+			return switch (this) {
+				case DIJKSTRA_HEAP -> system.shortestPath(from, to, QueueType.HEAP);
+				case DIJKSTRA_BUCKETS -> system.shortestPath(from, to, QueueType.BUCKETS);
+				case BIDIRECTIONAL -> system.bidirectionalPath(from, to);
+				case LANDMARKS -> system.landmarkPath(from, to);
+			};
+		}
+	}
+
+	/**
+	 * Network where every station has degree outgoing connections with random targets and types.
+	 */
+	static List<Station> randomNetwork(int n, int degree, Random random) {
+		List<Station> stations = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			List<Connection> connections = new ArrayList<>(degree);
+			for (int j = 0; j < degree; j++) {
+				connections.add(Connection.create(random.nextInt(MODES), random.nextInt(n),
+						random.nextInt(15)));
+			}
+			stations.add(new Station(i, null, connections));
+		}
+		return stations;
+	}
+
+	/**
+	 * Result of running all queries of one size with one engine.
+	 *
+	 * @param latencies sorted time of every query in nanoseconds
+	 * @param allocatedBytes bytes allocated by the measuring thread, -1 if the JVM cannot measure it
+	 */
+	record Measurement(long[] latencies, long totalNanos, long allocatedBytes) {
+		double throughput() {
+			return latencies.length / (totalNanos / 1e9);
+		}
+
+		double percentile(double p) {
+			int index = (int) Math.ceil(p / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, index)] / 1e3;
+		}
+
+		String allocationPerQuery() {
+			return allocatedBytes < 0 ? "n/a" : String.valueOf(allocatedBytes / latencies.length);
+		}
+	}
+
+	static Measurement measure(TransportSystem system, int[] queries, Engine engine) {
+		long[] latencies = new long[queries.length / 2];
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < latencies.length; i++) {
+			long queryStart = System.nanoTime();
+			engine.route(system, queries[2 * i], queries[2 * i + 1]);
+			latencies[i] = System.nanoTime() - queryStart;
+		}
+		long totalNanos = System.nanoTime() - start;
+		long allocatedAfter = allocatedBytes();
+		Arrays.sort(latencies);
+		long allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+		return new Measurement(latencies, totalNanos, allocated);
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far or -1 if the JVM does not support it
+	 */
+	private static long allocatedBytes() {
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+				&& bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+			return bean.getThreadAllocatedBytes(Thread.currentThread().threadId());
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) {
+		int maxStations = args.length > 0 ? Integer.parseInt(args[0]) : MAX_STATIONS;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+		System.out.printf("%-10s %9s %-16s %12s %10s %10s %10s %10s %12s%n", "topology", "stations", "engine",
+				"queries/s", "p50 us", "p90 us", "p99 us", "max us", "bytes/query");
+		for (Topology topology : Topology.values()) {
+			for (int n = MIN_STATIONS; n <= maxStations; n *= 10) {
+				Random random = new Random(seed);
+				TransportSystem system = new TransportSystem(topology.generate(n, random));
+				system.prepareLandmarks(LANDMARKS);
+				int count = (int) Math.max(MIN_QUERIES, Math.min(MAX_QUERIES, WORK_PER_SIZE / n));
+				int[] queries = new int[2 * count];
+				for (int i = 0; i < queries.length; i++) {
+					queries[i] = random.nextInt(n);
+				}
+
+				for (Engine engine : Engine.values()) {
+					// warm up the JIT and the workspaces of this size before we measure
+					measure(system, queries, engine);
+					Measurement m = measure(system, queries, engine);
+					System.out.printf("%-10s %9d %-16s %12.0f %10.1f %10.1f %10.1f %10.1f %12s%n", topology, n, engine,
+							m.throughput(), m.percentile(50), m.percentile(90), m.percentile(99), m.percentile(100),
+							m.allocationPerQuery());
+				}
+			}
+		}
+	}
+}
@@ -1,48 +1,3711 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
-public class TransportSystem {
-	private List<Station> stations;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
-	private Map<Character, Station> stationMapping;
+public class TransportSystem implements AutoCloseable {
+	private static final int DEFAULT_CACHE_CAPACITY = 1024;
+
+	private final List<Station> stations;
+
+	private final RouteCache cache;
+
+	// compiled network, null if a station has changed since the last compilation
+	private volatile TransitGraph graph;
+
+	// repaired after every call of updateTravelTime
+	private final List<ShortestPathTree> trees = new CopyOnWriteArrayList<>();
+
+	// travel times of updateTravelTime that differ from the Connection objects, applied again whenever the network
+	// is compiled again, guarded by this
+	private final Map<ConnectionKey, Integer> travelTimes = new HashMap<>();
+
+	private final SearchMetrics metrics = new SearchMetrics();
+
+	// lower bounds for landmarkPath, null if they were not prepared or are no longer valid
+	private volatile Landmarks landmarks;
+	// counts the changes after which landmark distances may no longer be lower bounds, guarded by this
+	private int landmarkVersion;
+
+	// registered at every station until close() is called, null for networks without Station objects
+	private final StationListener listener;
 
 	public TransportSystem(List<Station> stations) {
-		this.stations = stations;
-		this.stationMapping = new TreeMap<>();
-		for (Station station : stations) {
-			stationMapping.put(station.getName(), station);
+		this(stations, DEFAULT_CACHE_CAPACITY);
+	}
+
+	/**
+	 * @param stations the stations of the network, the first and the last station are used by findFastestRoute()
+	 * @param cacheCapacity maximum number of routes that are cached, 0 disables the cache
+	 */
+	public TransportSystem(List<Station> stations, int cacheCapacity) {
+		this.stations = new ArrayList<>(stations);
+		this.cache = new RouteCache(cacheCapacity);
+		this.graph = TransitGraph.compile(this.stations);
+		this.listener = new InvalidatingListener(this);
+		for (Station station : this.stations) {
+			station.addListener(listener);
+		}
+	}
+
+	/**
+	 * Network that was loaded from a file, it has no Station objects that could change.
+	 */
+	private TransportSystem(TransitGraph graph, int cacheCapacity) {
+		this.stations = new ArrayList<>();
+		this.cache = new RouteCache(cacheCapacity);
+		this.graph = graph;
+		this.listener = null;
+	}
+
+	/**
+	 * Load a network from a text file with one connection per line, see NetworkFiles.readEdgeList.
+	 */
+	public static TransportSystem loadEdgeList(Path file) throws IOException {
+		return new TransportSystem(NetworkFiles.readEdgeList(file), DEFAULT_CACHE_CAPACITY);
+	}
+
+	/**
+	 * Load a network from a snapshot that was written by saveSnapshot.
+	 */
+	public static TransportSystem loadSnapshot(Path file) throws IOException {
+		return new TransportSystem(NetworkFiles.readSnapshot(file), DEFAULT_CACHE_CAPACITY);
+	}
+
+	/**
+	 * Stop listening to the stations, afterwards changes of the stations are no longer noticed. A system that is not
+	 * closed does not keep itself alive either, its listeners remove themselves once it was garbage collected.
+	 */
+	@Override
+	public void close() {
+		if (listener != null) {
+			for (Station station : stations) {
+				station.removeListener(listener);
+			}
+		}
+	}
+
+	public void saveSnapshot(Path file) throws IOException {
+		NetworkFiles.writeSnapshot(graph(), file);
+	}
+
+	public Route findFastestRoute() {
+		return cachedRoute(0, graph().size() - 1);
+	}
+
+	/**
+	 * Find the fastest route between two arbitrary stations of the network.
+	 *
+	 * @param from name of the station where the route starts
+	 * @param to name of the station where the route ends
+	 * @return the fastest route or null if to cannot be reached from from
+	 * @throws IllegalArgumentException if there is no station with name from or to
+	 */
+	public Route findFastestRoute(char from, char to) {
+		return findFastestRoute((int) from, (int) to);
+	}
+
+	/**
+	 * Same as findFastestRoute(char, char) for networks whose stations are identified by an int id.
+	 *
+	 * @throws IllegalArgumentException if there is no station with id from or to
+	 */
+	public Route findFastestRoute(int from, int to) {
+		return cachedRoute(stationIndex(from), stationIndex(to));
+	}
+
+	public List<Route> findAlternativeRoutes(char from, char to, int k) {
+		return findAlternativeRoutes((int) from, (int) to, k);
+	}
+
+	/**
+	 * Find up to k routes from from to to, ordered by their travel time. The first route is the fastest route,
+	 * every other route differs from all routes before it and does not visit a station twice.
+	 *
+	 * @throws IllegalArgumentException if there is no station with id from or to
+	 */
+	public List<Route> findAlternativeRoutes(int from, int to, int k) {
+		return new AlternativeRouteSearch(graph(), stationIndex(from), stationIndex(to)).find(k);
+	}
+
+	public List<Route> findParetoRoutes(char from, char to) {
+		return findParetoRoutes((int) from, (int) to);
+	}
+
+	/**
+	 * Find all routes from from to to that are optimal for travel time and number of transfers, a transfer is a
+	 * change of the connection type. No route of the result is both slower and has more transfers than another, so
+	 * with the routes ordered by time the number of transfers decreases.
+	 *
+	 * Label setting on the states of shortestPath: a label is a way of reaching a state with some time and number of
+	 * transfers. Labels are settled in the order of their time, so a label is dominated if a settled label of the
+	 * same state has at most as many transfers, and a state only needs the smallest number of transfers of its
+	 * settled labels. Labels that have at least as many transfers as the last route found cannot lead to a better
+	 * route either. A label is three ints: the edge it used, the label before it and its transfers.
+	 *
+	 * @return the routes ordered by their time, empty if to cannot be reached from from
+	 * @throws IllegalArgumentException if there is no station with id from or to
+	 */
+	public List<Route> findParetoRoutes(int from, int to) {
+		TransitGraph graph = graph();
+		int start = stationIndex(from);
+		int end = stationIndex(to);
+		List<Route> routes = new ArrayList<>();
+		if (start == end) {
+			routes.add(new Route(0, new ArrayList<>()));
+			return routes;
+		}
+		int[] offsets = graph.offsets;
+		int[] targetStates = graph.targetStates;
+		int[] times = graph.times;
+		int[] types = graph.types;
+		int[] deductions = graph.deductions;
+
+		// the distance of a state is the smallest number of transfers of a settled label
+		SearchSpace space = SearchWorkspace.get().forward;
+		space.reset(graph.stateCount());
+		int[] labelEdges = new int[64];
+		int[] labelParents = new int[64];
+		int[] labelTransfers = new int[64];
+		labelEdges[0] = -1;
+		labelParents[0] = -1;
+		int labels = 1;
+		LongHeap q = new LongHeap();
+		q.push(LongHeap.entry(0, 0));
+		// transfers of the last route found, every later route needs fewer
+		int bestTransfers = Integer.MAX_VALUE;
+
+		while (!q.isEmpty()) {
+			long element = q.pop();
+			int label = LongHeap.value(element);
+			int time = LongHeap.key(element);
+			int transfers = labelTransfers[label];
+			int edge = labelEdges[label];
+			int state = edge == -1 ? graph.stateOffsets[start] : targetStates[edge];
+			if (transfers >= bestTransfers || transfers >= space.distance(state)) {
+				continue;
+			}
+			space.set(state, transfers, -1, -1);
+			int station = graph.stationOf(state);
+			if (station == end) {
+				ArrayList<Connection> connections = new ArrayList<>();
+				for (int l = label; labelEdges[l] != -1; l = labelParents[l]) {
+					connections.add(graph.connection(labelEdges[l]));
+				}
+				Collections.reverse(connections);
+				Route route = new Route(time, connections);
+				if (!routes.isEmpty() && routes.getLast().getTime() == time) {
+					// labels with the same time are not ordered by their transfers, this one dominates the last route
+					routes.set(routes.size() - 1, route);
+				} else {
+					routes.add(route);
+				}
+				bestTransfers = transfers;
+				if (transfers == 0) {
+					break;
+				}
+				continue;
+			}
+
+			int lastType = graph.typeOf(state);
+			for (int e = offsets[station]; e < offsets[station + 1]; e++) {
+				int type = types[e];
+				int weight = times[e];
+				int newTransfers = transfers;
+				if (type == lastType) {
+					weight -= deductions[type];
+				} else if (lastType != -1) {
+					newTransfers++;
+				}
+				int next = targetStates[e];
+				if (newTransfers >= bestTransfers || newTransfers >= space.distance(next)) {
+					continue;
+				}
+				if (labels == labelEdges.length) {
+					labelEdges = Arrays.copyOf(labelEdges, 2 * labels);
+					labelParents = Arrays.copyOf(labelParents, 2 * labels);
+					labelTransfers = Arrays.copyOf(labelTransfers, 2 * labels);
+				}
+				labelEdges[labels] = e;
+				labelParents[labels] = label;
+				labelTransfers[labels] = newTransfers;
+				q.push(LongHeap.entry(time + weight, labels));
+				labels++;
+			}
+		}
+		return routes;
+	}
+
+	public RouteCache getRouteCache() {
+		return cache;
+	}
+
+	/**
+	 * @return the statistics of the searches of this system, they are only collected while they are enabled
+	 */
+	public SearchMetrics getSearchMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Change the travel time of a connection, e.g. because of a delay. All shortest path trees of this system are
+	 * repaired. Cached routes are dropped if the time decreases, if it increases only the routes with this
+	 * connection. The new time stays when the network is compiled again after a station changes, as long as the
+	 * station still has this connection. Setting the time of the Connection object again ends the update.
+	 *
+	 * @param from id of the station where the connection starts
+	 * @param to id of the station where the connection ends
+	 * @param type type of the connection
+	 * @param time new travel time, at least the deduction of the type so that no connection gets a negative time
+	 * @throws IllegalArgumentException if there is no such connection, more than one (their times cannot be told
+	 * apart) or the time is too small
+	 */
+	public synchronized void updateTravelTime(int from, int to, int type, int time) {
+		TransitGraph graph = graph();
+		int e = graph.findEdge(stationIndex(from), stationIndex(to), type);
+		if (e == -1) {
+			throw new IllegalArgumentException("No connection of type " + type + " from " + Station.format(from)
+					+ " to " + Station.format(to));
+		}
+		if (e == -2) {
+			throw new IllegalArgumentException("Several connections of type " + type + " from " + Station.format(from)
+					+ " to " + Station.format(to));
+		}
+		if (time < graph.deductions[type]) {
+			throw new IllegalArgumentException("Travel time " + time + " is smaller than the deduction");
+		}
+		int oldTime = graph.times[e];
+		graph.setTime(e, time);
+		ConnectionKey key = new ConnectionKey(from, to, type);
+		if (time == graph.connection(e).getTime()) {
+			travelTimes.remove(key);
+		} else {
+			travelTimes.put(key, time);
+		}
+		if (time < oldTime) {
+			// any route may now have a faster alternative
+			cache.invalidate();
+			// the landmark distances may now be longer than the real ones and no longer be lower bounds
+			landmarks = null;
+			landmarkVersion++;
+		} else if (time > oldTime) {
+			cache.invalidate(from, to, type);
+		}
+		for (ShortestPathTree tree : trees) {
+			tree.edgeChanged(graph, e, oldTime);
+		}
+	}
+
+	/**
+	 * Compute the fastest travel times from one station to all other stations. The tree stays up to date: it is
+	 * repaired by updateTravelTime and computed again if a station changes. It is built and registered under the
+	 * lock of updateTravelTime, so no update can change a time after the tree read it but before it is repaired.
+	 *
+	 * @param from id of the root station
+	 * @throws IllegalArgumentException if there is no station with id from
+	 */
+	public synchronized ShortestPathTree shortestPathTree(int from) {
+		ShortestPathTree tree = new ShortestPathTree(this, from);
+		trees.add(tree);
+		return tree;
+	}
+
+	/**
+	 * Stop repairing the tree after updates, it can no longer be used afterwards.
+	 */
+	public void removeShortestPathTree(ShortestPathTree tree) {
+		trees.remove(tree);
+	}
+
+	/**
+	 * Choose landmarks and compute their distance tables, afterwards findFastestRoute uses landmarkPath. Needs
+	 * 2 * count ints per station. The landmarks are dropped when a station changes or a travel time decreases, call
+	 * this method again in that case.
+	 *
+	 * @param count number of landmarks, 8 to 16 are usually enough
+	 * @throws IllegalArgumentException if count is not positive
+	 */
+	public void prepareLandmarks(int count) {
+		TransitGraph graph;
+		int version;
+		synchronized (this) {
+			graph = graph();
+			version = landmarkVersion;
+		}
+		// Computed without the lock so that updates are not blocked for the whole computation. Times that increase in
+		// the meantime keep the distances lower bounds, after a decrease or a station change we compute them again
+		// under the lock.
+		Landmarks computed = Landmarks.compute(graph, count);
+		synchronized (this) {
+			if (version != landmarkVersion) {
+				computed = Landmarks.compute(graph(), count);
+			}
+			landmarks = computed;
+		}
+	}
+
+	/**
+	 * Create a planner on the current state of the network. Later changes of the stations or travel times do not
+	 * affect the planner, so it can be shared by any number of threads.
+	 */
+	public RoutePlanner planner() {
+		TransitGraph snapshot;
+		synchronized (this) {
+			// updateTravelTime holds the same lock, so no time changes while we copy them
+			snapshot = graph().snapshot();
+		}
+		return new RoutePlanner(new TransportSystem(snapshot, 0));
+	}
+
+	/**
+	 * Look up the route in the cache and only search for it if it is missing. Routes in the cache are shared
+	 * between all callers, hence their list of connections cannot be modified.
+	 */
+	private Route cachedRoute(int start, int end) {
+		TransitGraph graph = graph();
+		checkPositions(graph, start, end);
+		long key = RouteCache.key(graph.stationIds[start], graph.stationIds[end]);
+		Route route = cache.get(key);
+		if (route != null) {
+			return route;
+		}
+		// if a station changes during the search, the generation changes as well and the result is not stored
+		long generation = cache.generation();
+		route = landmarks != null ? landmarkPath(start, end) : bidirectionalPath(start, end);
+		if (route != null) {
+			route = new Route(route.getTime(), Collections.unmodifiableList(route.getConnections()));
+			cache.put(key, route, generation);
+		}
+		return route;
+	}
+
+	/**
+	 * Called whenever a station of the network changes. The graph is compiled again by the next query.
+	 */
+	synchronized void invalidate() {
+		graph = null;
+		landmarks = null;
+		landmarkVersion++;
+		cache.invalidate();
+	}
+
+	TransitGraph graph() {
+		TransitGraph current = graph;
+		if (current == null) {
+			synchronized (this) {
+				current = graph;
+				if (current == null) {
+					current = TransitGraph.compile(stations);
+					applyTravelTimes(current);
+					graph = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Set the times of updateTravelTime in a graph that was compiled again. Updates of connections that no longer
+	 * exist or are no longer the only one of their type between the two stations are dropped.
+	 */
+	private void applyTravelTimes(TransitGraph graph) {
+		Iterator<Map.Entry<ConnectionKey, Integer>> it = travelTimes.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<ConnectionKey, Integer> update = it.next();
+			ConnectionKey key = update.getKey();
+			int from = graph.indexOf(key.from());
+			int to = graph.indexOf(key.to());
+			int e = from == -1 || to == -1 ? -1 : graph.findEdge(from, to, key.type());
+			if (e < 0) {
+				it.remove();
+			} else {
+				graph.setTime(e, update.getValue());
+			}
+		}
+	}
+
+	int stationIndex(int id) {
+		int index = graph().indexOf(id);
+		if (index == -1) {
+			throw new IllegalArgumentException("Unknown station " + Station.format(id));
+		}
+		return index;
+	}
+
+	private static void checkPositions(TransitGraph graph, int start, int end) {
+		int n = graph.size();
+		if (start < 0 || start >= n || end < 0 || end >= n) {
+			throw new IllegalArgumentException("Station positions " + start + ", " + end + " out of range 0.." + (n - 1));
+		}
+	}
+
+	/**
+	 * Dijkstra on the graph of states (station, type of the last connection). The deduction only depends on
+	 * the last connection, so two ways of reaching a station with the same connection type can be compared
+	 * directly and we only need at most |V| + 2 * |E| states, see TransitGraph. Every state is settled once, hence
+	 * the running time is O((|V| + |E|) * log(|V|)) and cycles in the network are no problem.
+	 *
+	 * The searches on positions are package-private, the public methods take station ids and map them with
+	 * stationIndex.
+	 *
+	 * @param start index of the first station in stations
+	 * @param end index of the last station in stations
+	 * @return the fastest route or null if end cannot be reached from start
+	 * @throws IllegalArgumentException if start or end is not a position of a station
+	 */
+	Route shortestPath(int start, int end) {
+		return shortestPath(start, end, QueueType.HEAP);
+	}
+
+	/**
+	 * Same as shortestPath(start, end), but the priority queue of the search can be chosen.
+	 *
+	 * @param queueType BUCKETS is faster if all travel times are small, see BucketQueue
+	 */
+	Route shortestPath(int start, int end, QueueType queueType) {
+		TransitGraph graph = graph();
+		checkPositions(graph, start, end);
+		int[] offsets = graph.offsets;
+		int[] targetStates = graph.targetStates;
+		int[] times = graph.times;
+		int[] types = graph.types;
+		int[] deductions = graph.deductions;
+
+		RouteQueryEvent event = new RouteQueryEvent();
+		event.begin();
+		boolean instrumented = metrics.isEnabled() || event.isEnabled();
+		long startNanos = instrumented ? System.nanoTime() : 0;
+		// only counted in local variables, they are published after the search if it is instrumented
+		int settled = 0;
+		int pushes = 1;
+		int relaxations = 0;
+		int stalePops = 0;
+
+		// the first state of a station means that no connection was used yet
+		SearchSpace space = SearchWorkspace.get().forward;
+		space.reset(graph.stateCount());
+		StateQueue q = queueType == QueueType.BUCKETS ? space.buckets(graph.maxTime) : space.heap;
+		int startState = graph.stateOffsets[start];
+		space.set(startState, 0, -1, -1);
+		q.push(LongHeap.entry(0, startState));
+		int endState = -1;
+		while (!q.isEmpty()) {
+			long element = q.pop(); // takes O(log(n)) with the heap
+			int state = LongHeap.value(element);
+			int time = LongHeap.key(element);
+			if (time > space.distance(state)) {
+				// outdated entry, only the bucket queue keeps them
+				stalePops++;
+				continue;
+			}
+			settled++;
+			int station = graph.stationOf(state);
+			if (station == end) {
+				endState = state;
+				break;
+			}
+
+			int lastType = graph.typeOf(state);
+			relaxations += offsets[station + 1] - offsets[station];
+			for (int e = offsets[station]; e < offsets[station + 1]; e++) {
+				int type = types[e];
+				int weight = times[e];
+				if (type == lastType) {
+					weight -= deductions[type];
+				}
+				// weight is never negative => weight >= 0
+				int next = targetStates[e];
+				int newDistance = time + weight;
+				if (newDistance < space.distance(next)) {
+					space.set(next, newDistance, e, state);
+					// the heap decreases the key if next is already queued
+					q.push(LongHeap.entry(newDistance, next)); // takes O(log(n)) with the heap
+					pushes++;
+				}
+			}
+		}
+		if (instrumented) {
+			String engine = queueType == QueueType.BUCKETS ? "dijkstra-buckets" : "dijkstra-heap";
+			metrics.record(event, engine, graph.stationIds[start], graph.stationIds[end], endState != -1,
+					settled, pushes, relaxations, stalePops, System.nanoTime() - startNanos);
+		}
+		return endState == -1 ? null : createRoute(graph, space, endState);
+	}
+
+	/**
+	 * Same result as shortestPath, but we search forward from start and backward from end at the same time and
+	 * always continue on the side with the smaller distance. A backward state (station, type) stores the time
+	 * from station to end if the next connection has this type, so a forward state (v, a) and a backward state
+	 * (v, b) form a route of length forward + backward - deduction(a), where the deduction only applies if a == b.
+	 * Because of this deduction we may only stop once topForward + topBackward - maxDeduction >= best, after that
+	 * no route through an unsettled state can be faster. Both searches together settle about half as many states
+	 * as shortestPath on a large network.
+	 *
+	 * @param start index of the first station in stations
+	 * @param end index of the last station in stations
+	 * @return the fastest route or null if end cannot be reached from start
+	 * @throws IllegalArgumentException if start or end is not a position of a station
+	 */
+	Route bidirectionalPath(int start, int end) {
+		TransitGraph graph = graph();
+		checkPositions(graph, start, end);
+		if (start == end) {
+			return new Route(0, new ArrayList<>());
+		}
+		int[] deductions = graph.deductions;
+		int maxDeduction = graph.maxDeduction;
+
+		RouteQueryEvent event = new RouteQueryEvent();
+		event.begin();
+		boolean instrumented = metrics.isEnabled() || event.isEnabled();
+		long startNanos = instrumented ? System.nanoTime() : 0;
+		int settled = 0;
+		int pushes = 2;
+		int relaxations = 0;
+
+		// the parent of a backward state is the state that follows it on the route to end
+		SearchWorkspace workspace = SearchWorkspace.get();
+		SearchSpace forward = workspace.forward;
+		SearchSpace backward = workspace.backward;
+		forward.reset(graph.stateCount());
+		backward.reset(graph.stateCount());
+		IndexedHeap forwardQueue = forward.heap;
+		IndexedHeap backwardQueue = backward.heap;
+		forward.set(graph.stateOffsets[start], 0, -1, -1);
+		forwardQueue.push(LongHeap.entry(0, graph.stateOffsets[start]));
+		backward.set(graph.stateOffsets[end], 0, -1, -1);
+		backwardQueue.push(LongHeap.entry(0, graph.stateOffsets[end]));
+
+		// best route found so far, it goes through the forward state meetForward and the backward state meetBackward
+		long best = Long.MAX_VALUE;
+		int meetForward = -1;
+		int meetBackward = -1;
+		while (!forwardQueue.isEmpty() && !backwardQueue.isEmpty()) {
+			int topForward = LongHeap.key(forwardQueue.peek());
+			int topBackward = LongHeap.key(backwardQueue.peek());
+			if ((long) topForward + topBackward - maxDeduction >= best) {
+				break;
+			}
+
+			settled++;
+			if (topForward <= topBackward) {
+				long element = forwardQueue.pop();
+				int state = LongHeap.value(element);
+				int time = LongHeap.key(element);
+				int station = graph.stationOf(state);
+				int lastType = graph.typeOf(state);
+				relaxations += graph.offsets[station + 1] - graph.offsets[station];
+				for (int e = graph.offsets[station]; e < graph.offsets[station + 1]; e++) {
+					int type = graph.types[e];
+					int weight = graph.times[e];
+					if (type == lastType) {
+						weight -= deductions[type];
+					}
+					int neighbour = graph.targets[e];
+					int next = graph.targetStates[e];
+					int newDistance = time + weight;
+					if (newDistance < forward.distance(next)) {
+						forward.set(next, newDistance, e, state);
+						forwardQueue.push(LongHeap.entry(newDistance, next));
+						pushes++;
+						// check whether the backward search already reached neighbour
+						for (int other = graph.stateOffsets[neighbour]; other < graph.stateOffsets[neighbour + 1]; other++) {
+							int remaining = backward.distance(other);
+							if (remaining != Integer.MAX_VALUE) {
+								int deduction = graph.typeOf(other) == type ? deductions[type] : 0;
+								long length = (long) newDistance + remaining - deduction;
+								if (length < best) {
+									best = length;
+									meetForward = next;
+									meetBackward = other;
+								}
+							}
+						}
+					}
+				}
+			} else {
+				long element = backwardQueue.pop();
+				int state = LongHeap.value(element);
+				int time = LongHeap.key(element);
+				int station = graph.stationOf(state);
+				int nextType = graph.typeOf(state);
+				relaxations += graph.reverseOffsets[station + 1] - graph.reverseOffsets[station];
+				for (int i = graph.reverseOffsets[station]; i < graph.reverseOffsets[station + 1]; i++) {
+					int e = graph.reverseEdges[i];
+					int type = graph.types[e];
+					int weight = graph.times[e];
+					if (type == nextType) {
+						weight -= deductions[type];
+					}
+					int neighbour = graph.sources[e];
+					int next = graph.sourceStates[e];
+					int newDistance = time + weight;
+					if (newDistance < backward.distance(next)) {
+						backward.set(next, newDistance, e, state);
+						backwardQueue.push(LongHeap.entry(newDistance, next));
+						pushes++;
+						// check whether the forward search already reached neighbour
+						for (int other = graph.stateOffsets[neighbour]; other < graph.stateOffsets[neighbour + 1]; other++) {
+							int travelled = forward.distance(other);
+							if (travelled != Integer.MAX_VALUE) {
+								int deduction = graph.typeOf(other) == type ? deductions[type] : 0;
+								long length = (long) travelled + newDistance - deduction;
+								if (length < best) {
+									best = length;
+									meetForward = other;
+									meetBackward = next;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		if (instrumented) {
+			// the indexed heaps never contain outdated entries
+			metrics.record(event, "bidirectional", graph.stationIds[start], graph.stationIds[end], meetForward != -1,
+					settled, pushes, relaxations, 0, System.nanoTime() - startNanos);
+		}
+		if (meetForward == -1) {
+			return null;
+		}
+
+		ArrayList<Connection> connections = new ArrayList<>();
+		for (int state = meetForward; forward.edge(state) != -1; state = forward.parent(state)) {
+			connections.add(graph.connection(forward.edge(state)));
+		}
+		Collections.reverse(connections);
+		for (int state = meetBackward; backward.edge(state) != -1; state = backward.parent(state)) {
+			connections.add(graph.connection(backward.edge(state)));
+		}
+		return new Route((int) best, connections);
+	}
+
+	/**
+	 * A* search with the lower bounds of the landmarks that were prepared with prepareLandmarks. The search is
+	 * directed towards end, so it settles far fewer states than shortestPath on a long route. If there are no valid
+	 * landmarks, this is the same as shortestPath.
+	 *
+	 * @param start index of the first station in stations
+	 * @param end index of the last station in stations
+	 * @return the fastest route or null if end cannot be reached from start
+	 * @throws IllegalArgumentException if start or end is not a position of a station
+	 */
+	Route landmarkPath(int start, int end) {
+		TransitGraph graph = graph();
+		checkPositions(graph, start, end);
+		Landmarks landmarks = this.landmarks;
+		if (landmarks == null || landmarks.graph != graph) {
+			return shortestPath(start, end);
+		}
+		int[] offsets = graph.offsets;
+		int[] targets = graph.targets;
+		int[] times = graph.times;
+		int[] types = graph.types;
+		int[] deductions = graph.deductions;
+
+		RouteQueryEvent event = new RouteQueryEvent();
+		event.begin();
+		boolean instrumented = metrics.isEnabled() || event.isEnabled();
+		long startNanos = instrumented ? System.nanoTime() : 0;
+		int settled = 0;
+		int pushes = 1;
+		int relaxations = 0;
+
+		// the heap is ordered by distance + lower bound, the search space stores the distance
+		SearchSpace space = SearchWorkspace.get().forward;
+		space.reset(graph.stateCount());
+		IndexedHeap q = space.heap;
+		space.set(graph.stateOffsets[start], 0, -1, -1);
+		q.push(LongHeap.entry(landmarks.lowerBound(start, end), graph.stateOffsets[start]));
+		int endState = -1;
+		while (!q.isEmpty()) {
+			int state = LongHeap.value(q.pop());
+			int time = space.distance(state);
+			settled++;
+			int station = graph.stationOf(state);
+			if (station == end) {
+				endState = state;
+				break;
+			}
+
+			int lastType = graph.typeOf(state);
+			relaxations += offsets[station + 1] - offsets[station];
+			for (int e = offsets[station]; e < offsets[station + 1]; e++) {
+				int type = types[e];
+				int weight = times[e];
+				if (type == lastType) {
+					weight -= deductions[type];
+				}
+				int next = graph.targetStates[e];
+				int newDistance = time + weight;
+				if (newDistance < space.distance(next)) {
+					int bound = landmarks.lowerBound(targets[e], end);
+					if (bound == Integer.MAX_VALUE) {
+						// end cannot be reached from this station
+						continue;
+					}
+					space.set(next, newDistance, e, state);
+					q.push(LongHeap.entry(newDistance + bound, next));
+					pushes++;
+				}
+			}
+		}
+		if (instrumented) {
+			metrics.record(event, "landmarks", graph.stationIds[start], graph.stationIds[end], endState != -1,
+					settled, pushes, relaxations, 0, System.nanoTime() - startNanos);
+		}
+		return endState == -1 ? null : createRoute(graph, space, endState);
+	}
+
+	/**
+	 * Find all stations that can be reached from from within maxTime. This is a single Dijkstra search from from
+	 * that stops as soon as the smallest queued distance exceeds maxTime, so it only settles the states inside the
+	 * isochrone instead of searching a route to every station.
+	 *
+	 * @param from id of the station where all routes start
+	 * @param maxTime largest travel time of a reachable station
+	 * @return the reachable stations ordered by their travel time, including from itself with time 0
+	 * @throws IllegalArgumentException if there is no station with id from or maxTime is negative
+	 */
+	public Isochrone isochrone(int from, int maxTime) {
+		if (maxTime < 0) {
+			throw new IllegalArgumentException("Negative time budget " + maxTime);
+		}
+		TransitGraph graph = graph();
+		int start = stationIndex(from);
+		int[] offsets = graph.offsets;
+		int[] targetStates = graph.targetStates;
+		int[] times = graph.times;
+		int[] types = graph.types;
+		int[] deductions = graph.deductions;
+
+		SearchSpace space = SearchWorkspace.get().forward;
+		space.reset(graph.stateCount());
+		IndexedHeap q = space.heap;
+		int[] stationIds = new int[16];
+		int[] arrivals = new int[16];
+		int size = 0;
+
+		space.set(graph.stateOffsets[start], 0, -1, -1);
+		q.push(LongHeap.entry(0, graph.stateOffsets[start]));
+		while (!q.isEmpty()) {
+			long element = q.pop();
+			int time = LongHeap.key(element);
+			if (time > maxTime) {
+				break;
+			}
+			int state = LongHeap.value(element);
+			int station = graph.stationOf(state);
+			// no connection ends in the state "no connection used yet", so for every station except start we can mark
+			// it as reached by setting the distance of this state
+			if (state == graph.stateOffsets[start] || space.distance(graph.stateOffsets[station]) == Integer.MAX_VALUE) {
+				if (station != start) {
+					space.set(graph.stateOffsets[station], time, -1, -1);
+				}
+				if (size == stationIds.length) {
+					stationIds = Arrays.copyOf(stationIds, 2 * size);
+					arrivals = Arrays.copyOf(arrivals, 2 * size);
+				}
+				stationIds[size] = graph.stationIds[station];
+				arrivals[size] = time;
+				size++;
+			}
+
+			int lastType = graph.typeOf(state);
+			for (int e = offsets[station]; e < offsets[station + 1]; e++) {
+				int type = types[e];
+				int weight = times[e];
+				if (type == lastType) {
+					weight -= deductions[type];
+				}
+				int next = targetStates[e];
+				int newDistance = time + weight;
+				if (newDistance <= maxTime && newDistance < space.distance(next)) {
+					space.set(next, newDistance, e, state);
+					q.push(LongHeap.entry(newDistance, next));
+				}
+			}
+		}
+		return new Isochrone(Arrays.copyOf(stationIds, size), Arrays.copyOf(arrivals, size));
+	}
+
+	/**
+	 * Compute the fastest travel times from one station to all stations with parallel delta-stepping on the common
+	 * fork/join pool, see DeltaStepping. Meant for offline analysis of very large networks, the result is the same as
+	 * with a ShortestPathTree.
+	 *
+	 * @param from id of the station where all routes start
+	 * @param delta width of the distance buckets, larger values give more parallel work but more repeated work
+	 * @return the travel times indexed by the position of the stations, -1 if a station cannot be reached. The id of
+	 * the station at each position is in getStationIds()
+	 * @throws IllegalArgumentException if there is no station with id from or delta is not positive
+	 */
+	public int[] travelTimesFrom(int from, int delta) {
+		return travelTimesFrom(from, delta, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as travelTimesFrom(from, delta), but the relaxations run on the given pool.
+	 */
+	public int[] travelTimesFrom(int from, int delta, ForkJoinPool pool) {
+		if (delta <= 0) {
+			throw new IllegalArgumentException("Delta must be positive: " + delta);
+		}
+		return new DeltaStepping(graph(), delta, pool).run(stationIndex(from));
+	}
+
+	/**
+	 * Compute the fastest travel time between all pairs of stations. We run one single source search per station
+	 * and distribute the stations over all cores with the fork/join framework. Needs n * n ints of memory (two times
+	 * that with next hops), so this is meant for networks with up to a few ten thousand stations.
+	 *
+	 * @param withNextHops if true, the matrix also stores the next station on the fastest route for every pair
+	 * @return the travel times, indexed by the position of the stations, see TravelTimeMatrix.getStationId
+	 */
+	public TravelTimeMatrix travelTimes(boolean withNextHops) {
+		TransitGraph graph = graph();
+		int n = graph.size();
+		if ((long) n * n > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many stations for a travel time matrix: " + n);
+		}
+		int[] times = new int[n * n];
+		int[] nextHops = withNextHops ? new int[n * n] : null;
+		ForkJoinPool.commonPool().invoke(new TravelTimeTask(graph, 0, n, times, nextHops));
+		return new TravelTimeMatrix(n, times, nextHops, graph.stationIds);
+	}
+
+	/**
+	 * @return the id of the station at every position. For a list of stations the position is the index in the list,
+	 * for a network loaded from a file it is the order in which the stations appear in the file. The positions only
+	 * change when a station changes.
+	 */
+	public int[] getStationIds() {
+		return graph().stationIds.clone();
+	}
+
+	private Route createRoute(TransitGraph graph, SearchSpace space, int endState) {
+		ArrayList<Connection> connections = new ArrayList<>();
+		for (int state = endState; space.edge(state) != -1; state = space.parent(state)) {
+			connections.add(graph.connection(space.edge(state)));
+		}
+		Collections.reverse(connections);
+		return new Route(space.distance(endState), connections);
+	}
+}
+
+/**
+ * Immutable compressed sparse row (CSR) representation of a list of stations. Stations are numbered by their
+ * position in the list and the connections of station i are the edges offsets[i] ... offsets[i + 1] - 1. Travel
+ * times, types and deductions are computed once here, so a search only reads flat int arrays and never looks
+ * up a station by its name.
+ *
+ * The searches run on states (station, type of the last connection), because the deduction depends on it. The
+ * connection types are whatever getType() of the connections returns, so a new mode only needs a new Connection
+ * class. A station only has the states of the types of its own connections: the state "no connection used yet" and
+ * one state per type of the connections that end or start in it. So the number of states is at most n + 2 * m, no
+ * matter how many types there are.
+ */
+class TransitGraph {
+
+	final int[] offsets;
+	final int[] sources;
+	final int[] targets;
+	final int[] distances;
+	final int[] times;
+	// largest travel time of a connection, only grows if a time is changed
+	volatile int maxTime;
+	final int[] types;
+	// deduction of the connection types, indexed by type
+	final int[] deductions;
+	final int maxDeduction;
+	// only needed to turn a list of edges back into a Route, created on demand for networks loaded from a file
+	private final Connection[] connections;
+
+	// incoming edges: the edges that end in station i are reverseEdges[reverseOffsets[i] ... reverseOffsets[i + 1] - 1]
+	final int[] reverseOffsets;
+	final int[] reverseEdges;
+
+	// station ids in the order of the list, ids maps a station id back to its index
+	final int[] stationIds;
+	private final IntIntMap ids;
+
+	// the states of station i are stateOffsets[i] ... stateOffsets[i + 1] - 1, the first one is "no connection used yet"
+	final int[] stateOffsets;
+	// station << typeBits | (type of the last connection + 1) of every state, a search needs both after every pop
+	// and reads them with one memory access
+	private final int[] stateKeys;
+	private final int typeBits;
+	// state (targets[e], types[e]) reached by edge e and state (sources[e], types[e]) of the backward search
+	final int[] targetStates;
+	final int[] sourceStates;
+
+	/**
+	 * @param connections the connection objects of the edges, may contain null values
+	 */
+	TransitGraph(int[] offsets, int[] targets, int[] distances, int[] times, int[] types, int[] deductions,
+			Connection[] connections, int[] stationIds, IntIntMap ids) {
+		this.offsets = offsets;
+		this.targets = targets;
+		this.distances = distances;
+		int n = offsets.length - 1;
+		int m = targets.length;
+
+		this.sources = new int[m];
+		for (int i = 0; i < n; i++) {
+			for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+				sources[e] = i;
+			}
+		}
+		// counting sort of the edges by their target
+		this.reverseOffsets = new int[n + 1];
+		for (int e = 0; e < m; e++) {
+			reverseOffsets[targets[e] + 1]++;
+		}
+		for (int i = 0; i < n; i++) {
+			reverseOffsets[i + 1] += reverseOffsets[i];
+		}
+		this.reverseEdges = new int[m];
+		int[] position = Arrays.copyOf(reverseOffsets, n);
+		for (int e = 0; e < m; e++) {
+			reverseEdges[position[targets[e]]++] = e;
+		}
+		this.times = times;
+		int max = 0;
+		for (int time : times) {
+			max = Math.max(max, time);
+		}
+		this.maxTime = max;
+		this.types = types;
+		this.deductions = deductions;
+		max = 0;
+		for (int deduction : deductions) {
+			max = Math.max(max, deduction);
+		}
+		this.maxDeduction = max;
+		this.connections = connections;
+		this.stationIds = stationIds;
+		this.ids = ids;
+
+		// the state of a type at the current station is stateOfType[type] if lastStation[type] is this station
+		int[] lastStation = new int[deductions.length];
+		int[] stateOfType = new int[deductions.length];
+		Arrays.fill(lastStation, -1);
+		this.stateOffsets = new int[n + 1];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			stateOffsets[i] = count++;
+			for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+				if (lastStation[types[e]] != i) {
+					lastStation[types[e]] = i;
+					count++;
+				}
+			}
+			for (int r = reverseOffsets[i]; r < reverseOffsets[i + 1]; r++) {
+				if (lastStation[types[reverseEdges[r]]] != i) {
+					lastStation[types[reverseEdges[r]]] = i;
+					count++;
+				}
+			}
+		}
+		stateOffsets[n] = count;
+		this.typeBits = 32 - Integer.numberOfLeadingZeros(deductions.length);
+		if ((long) n << typeBits > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many stations for " + deductions.length + " connection types: " + n);
+		}
+		this.stateKeys = new int[count];
+		this.targetStates = new int[m];
+		this.sourceStates = new int[m];
+		Arrays.fill(lastStation, -1);
+		for (int i = 0; i < n; i++) {
+			int state = stateOffsets[i];
+			stateKeys[state] = i << typeBits;
+			for (int k = 0; k < 2; k++) {
+				int first = k == 0 ? offsets[i] : reverseOffsets[i];
+				int last = k == 0 ? offsets[i + 1] : reverseOffsets[i + 1];
+				for (int j = first; j < last; j++) {
+					int e = k == 0 ? j : reverseEdges[j];
+					int type = types[e];
+					if (lastStation[type] != i) {
+						lastStation[type] = i;
+						stateOfType[type] = ++state;
+						stateKeys[state] = i << typeBits | (type + 1);
+					}
+					if (k == 0) {
+						sourceStates[e] = stateOfType[type];
+					} else {
+						targetStates[e] = stateOfType[type];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compile the stations into a graph. Connections to stations that are not in the list are dropped.
+	 *
+	 * @throws IllegalArgumentException if two stations have the same id, a connection has an unknown type or two
+	 * connections of the same type have a different deduction
+	 */
+	static TransitGraph compile(List<Station> stations) {
+		int n = stations.size();
+		int[] stationIds = new int[n];
+		IntIntMap ids = new IntIntMap(n);
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			Station station = stations.get(i);
+			stationIds[i] = station.getId();
+			if (ids.put(station.getId(), i) != -1) {
+				throw new IllegalArgumentException("Duplicate station id " + station.getId());
+			}
+			m += station.getConnections().size();
+		}
+
+		int[] deductions = new int[0];
+		int[] offsets = new int[n + 1];
+		int[] targets = new int[m];
+		int[] distances = new int[m];
+		int[] times = new int[m];
+		int[] types = new int[m];
+		Connection[] connections = new Connection[m];
+		int e = 0;
+		for (int i = 0; i < n; i++) {
+			for (Connection connection : stations.get(i).getConnections()) {
+				int target = ids.get(connection.getNextStationId());
+				if (target == -1) {
+					continue;
+				}
+				deductions = addDeduction(deductions, connection);
+				targets[e] = target;
+				distances[e] = connection.getDistance();
+				times[e] = connection.getTime();
+				types[e] = connection.getType();
+				connections[e] = connection;
+				e++;
+			}
+			offsets[i + 1] = e;
+		}
+		// connections to unknown stations were dropped
+		return new TransitGraph(offsets, Arrays.copyOf(targets, e), Arrays.copyOf(distances, e),
+				Arrays.copyOf(times, e), Arrays.copyOf(types, e), deductions, Arrays.copyOf(connections, e), stationIds,
+				ids);
+	}
+
+	/**
+	 * Store the deduction of the type of connection in deductions, which contains -1 for types we have not seen yet.
+	 *
+	 * @return deductions or a longer copy of it if the type of connection is larger than all types so far
+	 * @throws IllegalArgumentException if the connection has a negative type or another connection of this type has
+	 * a different deduction
+	 */
+	static int[] addDeduction(int[] deductions, Connection connection) {
+		int type = connection.getType();
+		if (type < 0) {
+			throw new IllegalArgumentException("Negative connection type " + type + " of " + connection);
+		}
+		if (type >= deductions.length) {
+			int length = deductions.length;
+			deductions = Arrays.copyOf(deductions, type + 1);
+			Arrays.fill(deductions, length, type + 1, -1);
+		}
+		if (deductions[type] == -1) {
+			deductions[type] = connection.getDeduction();
+		} else if (deductions[type] != connection.getDeduction()) {
+			throw new IllegalArgumentException("Different deductions for connection type " + type);
+		}
+		return deductions;
+	}
+
+	/**
+	 * @return the edge of this type from station from to station to, -1 if there is no such edge and -2 if there is
+	 * more than one
+	 */
+	int findEdge(int from, int to, int type) {
+		int found = -1;
+		for (int e = offsets[from]; e < offsets[from + 1]; e++) {
+			if (targets[e] == to && types[e] == type) {
+				if (found != -1) {
+					return -2;
+				}
+				found = e;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Change the travel time of edge e. Searches that run at the same time see either the old or the new time.
+	 */
+	void setTime(int e, int time) {
+		times[e] = time;
+		if (time > maxTime) {
+			maxTime = time;
+		}
+	}
+
+	/**
+	 * @return graph with the same stations and connections whose travel times are not changed by setTime
+	 */
+	TransitGraph snapshot() {
+		return new TransitGraph(offsets, targets, distances, times.clone(), types, deductions, connections, stationIds,
+				ids);
+	}
+
+	/**
+	 * @return the connection of edge e
+	 */
+	Connection connection(int e) {
+		Connection connection = connections[e];
+		if (connection == null) {
+			// two threads may create the same connection, which does no harm
+			connection = Connection.create(types[e], stationIds[targets[e]], distances[e]);
+			connections[e] = connection;
+		}
+		return connection;
+	}
+
+	/**
+	 * @return the index of the station with this id or -1 if there is no such station
+	 */
+	int indexOf(int id) {
+		return ids.get(id);
+	}
+
+	int size() {
+		return offsets.length - 1;
+	}
+
+	int stateCount() {
+		return stateKeys.length;
+	}
+
+	int stationOf(int state) {
+		return stateKeys[state] >>> typeBits;
+	}
+
+	/**
+	 * @return the type of the last connection of the state, -1 for the first state of a station
+	 */
+	int typeOf(int state) {
+		return (stateKeys[state] & ((1 << typeBits) - 1)) - 1;
+	}
+
+	/**
+	 * @return the state (station, type) or -1 if no connection of this type ends or starts in station
+	 */
+	int stateOf(int station, int type) {
+		for (int state = stateOffsets[station] + 1; state < stateOffsets[station + 1]; state++) {
+			if (typeOf(state) == type) {
+				return state;
+			}
+		}
+		return -1;
+	}
+}
+
+/**
+ * Thread-safe route queries on a fixed network, created by TransportSystem.planner(). The planner owns a copy of the
+ * graph that nobody changes and every search uses the workspace of its thread, hence queries need no locks.
+ */
+class RoutePlanner {
+	private final TransportSystem system;
+
+	RoutePlanner(TransportSystem system) {
+		this.system = system;
+	}
+
+	/**
+	 * @return the fastest route or null if to cannot be reached from from
+	 * @throws IllegalArgumentException if there is no station with id from or to
+	 */
+	public Route route(int from, int to) {
+		return system.bidirectionalPath(system.stationIndex(from), system.stationIndex(to));
+	}
+
+	/**
+	 * Answer many queries in parallel on the common fork/join pool. Idle workers steal the queries of busy workers
+	 * and every worker reuses its search arrays for all of its queries.
+	 *
+	 * @return the routes in the order of the queries, null for a query whose destination cannot be reached
+	 * @throws IllegalArgumentException if a query contains an unknown station, no query is answered in this case
+	 */
+	public List<Route> routeAll(List<RouteQuery> queries) {
+		return routeAll(queries, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as routeAll(queries), but the searches run on the given pool.
+	 */
+	public List<Route> routeAll(List<RouteQuery> queries, ForkJoinPool pool) {
+		int[] starts = new int[queries.size()];
+		int[] ends = new int[queries.size()];
+		for (int i = 0; i < starts.length; i++) {
+			RouteQuery query = queries.get(i);
+			starts[i] = system.stationIndex(query.from());
+			ends[i] = system.stationIndex(query.to());
+		}
+		Route[] routes = new Route[starts.length];
+		pool.invoke(new RouteBatchTask(system, starts, ends, routes, 0, routes.length));
+		return Collections.unmodifiableList(Arrays.asList(routes));
+	}
+}
+
+/**
+ * A route query of RoutePlanner.routeAll.
+ *
+ * @param from id of the station where the route starts
+ * @param to id of the station where the route ends
+ */
+record RouteQuery(int from, int to) {
+}
+
+/**
+ * A connection by the ids of its stations and its type, identifies the travel times of TransportSystem.updateTravelTime
+ * independent of the positions of a compilation.
+ */
+record ConnectionKey(int from, int to, int type) {
+}
+
+/**
+ * Answers the queries from ... to - 1 of a batch. Like TravelTimeTask, the range is split in halves until it is
+ * small enough.
+ *
+ * Searches use the thread local SearchWorkspace, whose arrays have the size of the network. A virtual thread per
+ * query would allocate these arrays for every query, the few platform threads of a fork/join pool allocate them once.
+ */
+class RouteBatchTask extends RecursiveAction {
+	// number of queries that are answered in one task
+	private static final int THRESHOLD = 8;
+
+	private final TransportSystem system;
+	private final int[] starts;
+	private final int[] ends;
+	private final Route[] routes;
+	private final int from;
+	private final int to;
+
+	RouteBatchTask(TransportSystem system, int[] starts, int[] ends, Route[] routes, int from, int to) {
+		this.system = system;
+		this.starts = starts;
+		this.ends = ends;
+		this.routes = routes;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from > THRESHOLD) {
+			int middle = (from + to) >>> 1;
+			invokeAll(new RouteBatchTask(system, starts, ends, routes, from, middle),
+					new RouteBatchTask(system, starts, ends, routes, middle, to));
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			routes[i] = system.bidirectionalPath(starts[i], ends[i]);
+		}
+	}
+}
+
+/**
+ * Parallel single source shortest paths with delta-stepping (Meyer and Sanders) on the states of
+ * TransportSystem.shortestPath. States are kept in buckets of distance width delta. The states of the smallest
+ * bucket are taken out together and their light connections (weight <= delta) are relaxed in parallel, which may
+ * put states into the same bucket again. Once the bucket stays empty, its distances are final and the heavy
+ * connections of all its states are relaxed in parallel, they can only reach later buckets.
+ *
+ * Distances are lowered with compare and set, so threads relax connections into the same state without locks. A
+ * state is put into a bucket every time its distance is lowered, outdated entries are skipped when a bucket is taken
+ * out. With delta = 1 this settles states in the same order as Dijkstra, with a delta larger than every weight it
+ * becomes a parallel Bellman-Ford.
+ */
+class DeltaStepping {
+	private static final VarHandle DISTANCE = MethodHandles.arrayElementVarHandle(int[].class);
+
+	final TransitGraph graph;
+	final int delta;
+	private final ForkJoinPool pool;
+	final int[] distance;
+
+	// bucket i holds states whose distance was in [i * delta, (i + 1) * delta) when they were added
+	private int[][] buckets = new int[16][];
+	private int[] bucketSizes = new int[16];
+	private int lastBucket;
+
+	// states that are in the current frontier and that were taken out of the current bucket
+	private final int[] frontierMarks;
+	private final int[] settledMarks;
+	private int round;
+	private int phase;
+
+	// states whose distance was lowered by the tasks of the last parallel relaxation
+	private int[] improved = new int[16];
+	private int improvedCount;
+
+	DeltaStepping(TransitGraph graph, int delta, ForkJoinPool pool) {
+		this.graph = graph;
+		this.delta = delta;
+		this.pool = pool;
+		int states = graph.stateCount();
+		this.distance = new int[states];
+		this.frontierMarks = new int[states];
+		this.settledMarks = new int[states];
+	}
+
+	/**
+	 * @return the travel times from start to every station, -1 if a station cannot be reached
+	 */
+	int[] run(int start) {
+		Arrays.fill(distance, Integer.MAX_VALUE);
+		distance[graph.stateOffsets[start]] = 0;
+		add(graph.stateOffsets[start]);
+
+		for (int i = 0; i <= lastBucket; i++) {
+			if (bucketSizes[i] == 0) {
+				continue;
+			}
+			phase++;
+			int[] settled = new int[16];
+			int settledCount = 0;
+			while (bucketSizes[i] > 0) {
+				// the current states of the bucket, each state only once
+				int[] bucket = buckets[i];
+				int size = bucketSizes[i];
+				buckets[i] = new int[16];
+				bucketSizes[i] = 0;
+				round++;
+				int frontierSize = 0;
+				for (int k = 0; k < size; k++) {
+					int state = bucket[k];
+					if (distance[state] / delta == i && frontierMarks[state] != round) {
+						frontierMarks[state] = round;
+						bucket[frontierSize++] = state;
+						if (settledMarks[state] != phase) {
+							settledMarks[state] = phase;
+							if (settledCount == settled.length) {
+								settled = Arrays.copyOf(settled, 2 * settledCount);
+							}
+							settled[settledCount++] = state;
+						}
+					}
+				}
+				relax(bucket, frontierSize, true);
+			}
+			buckets[i] = null;
+			relax(settled, settledCount, false);
+		}
+
+		int[] times = new int[graph.size()];
+		for (int v = 0; v < times.length; v++) {
+			int best = Integer.MAX_VALUE;
+			for (int state = graph.stateOffsets[v]; state < graph.stateOffsets[v + 1]; state++) {
+				best = Math.min(best, distance[state]);
+			}
+			times[v] = best == Integer.MAX_VALUE ? -1 : best;
+		}
+		return times;
+	}
+
+	/**
+	 * Relax the light or the heavy connections of the states in parallel and put every improved state into its
+	 * bucket.
+	 */
+	private void relax(int[] states, int size, boolean light) {
+		improvedCount = 0;
+		pool.invoke(new DeltaSteppingTask(this, states, 0, size, light));
+		for (int k = 0; k < improvedCount; k++) {
+			add(improved[k]);
+		}
+	}
+
+	/**
+	 * Lower the distance of the state if newDistance is smaller, safe to call from several threads.
+	 *
+	 * @return true if the distance was lowered
+	 */
+	boolean lower(int state, int newDistance) {
+		int current = (int) DISTANCE.getVolatile(distance, state);
+		while (newDistance < current) {
+			int witness = (int) DISTANCE.compareAndExchange(distance, state, current, newDistance);
+			if (witness == current) {
+				return true;
+			}
+			current = witness;
+		}
+		return false;
+	}
+
+	/**
+	 * Called once by every task with the states it improved.
+	 */
+	synchronized void addImproved(int[] states, int size) {
+		if (improvedCount + size > improved.length) {
+			improved = Arrays.copyOf(improved, Math.max(2 * improved.length, improvedCount + size));
+		}
+		System.arraycopy(states, 0, improved, improvedCount, size);
+		improvedCount += size;
+	}
+
+	private void add(int state) {
+		int i = distance[state] / delta;
+		if (i >= buckets.length) {
+			int length = Math.max(2 * buckets.length, i + 1);
+			buckets = Arrays.copyOf(buckets, length);
+			bucketSizes = Arrays.copyOf(bucketSizes, length);
+		}
+		if (buckets[i] == null) {
+			buckets[i] = new int[16];
+		} else if (bucketSizes[i] == buckets[i].length) {
+			buckets[i] = Arrays.copyOf(buckets[i], 2 * bucketSizes[i]);
+		}
+		buckets[i][bucketSizes[i]++] = state;
+		lastBucket = Math.max(lastBucket, i);
+	}
+}
+
+/**
+ * Relaxes the light or heavy connections of the states from ... to - 1 of one DeltaStepping step. The range is split
+ * in halves until it is small enough, like in TravelTimeTask.
+ */
+class DeltaSteppingTask extends RecursiveAction {
+	// number of states whose connections are relaxed in one task
+	private static final int THRESHOLD = 256;
+
+	private final DeltaStepping stepping;
+	private final int[] states;
+	private final int from;
+	private final int to;
+	private final boolean light;
+
+	DeltaSteppingTask(DeltaStepping stepping, int[] states, int from, int to, boolean light) {
+		this.stepping = stepping;
+		this.states = states;
+		this.from = from;
+		this.to = to;
+		this.light = light;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from > THRESHOLD) {
+			int middle = (from + to) >>> 1;
+			invokeAll(new DeltaSteppingTask(stepping, states, from, middle, light),
+					new DeltaSteppingTask(stepping, states, middle, to, light));
+			return;
+		}
+		TransitGraph graph = stepping.graph;
+		int delta = stepping.delta;
+		int[] improved = new int[16];
+		int improvedCount = 0;
+		for (int k = from; k < to; k++) {
+			int state = states[k];
+			// may be lowered by another task meanwhile, then the state is relaxed again from its new bucket entry
+			int time = stepping.distance[state];
+			int station = graph.stationOf(state);
+			int lastType = graph.typeOf(state);
+			for (int e = graph.offsets[station]; e < graph.offsets[station + 1]; e++) {
+				int type = graph.types[e];
+				int weight = graph.times[e];
+				if (type == lastType) {
+					weight -= graph.deductions[type];
+				}
+				if ((weight <= delta) != light) {
+					continue;
+				}
+				int next = graph.targetStates[e];
+				if (stepping.lower(next, time + weight)) {
+					if (improvedCount == improved.length) {
+						improved = Arrays.copyOf(improved, 2 * improvedCount);
+					}
+					improved[improvedCount++] = next;
+				}
+			}
+		}
+		if (improvedCount > 0) {
+			stepping.addImproved(improved, improvedCount);
+		}
+	}
+}
+
+/**
+ * Fills the rows from ... to - 1 of a travel time matrix. The range is split in halves until it is small enough,
+ * idle workers of the pool steal the halves that are not processed yet.
+ */
+class TravelTimeTask extends RecursiveAction {
+	// number of single source searches that are done in one task
+	private static final int THRESHOLD = 4;
+
+	private final TransitGraph graph;
+	private final int from;
+	private final int to;
+	private final int[] times;
+	private final int[] nextHops;
+
+	TravelTimeTask(TransitGraph graph, int from, int to, int[] times, int[] nextHops) {
+		this.graph = graph;
+		this.from = from;
+		this.to = to;
+		this.times = times;
+		this.nextHops = nextHops;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from > THRESHOLD) {
+			int middle = (from + to) >>> 1;
+			invokeAll(new TravelTimeTask(graph, from, middle, times, nextHops),
+					new TravelTimeTask(graph, middle, to, times, nextHops));
+			return;
+		}
+		// the arrays are shared by all searches of this task
+		int[] distance = new int[graph.stateCount()];
+		int[] firstHop = nextHops == null ? null : new int[distance.length];
+		LongHeap q = new LongHeap();
+		for (int start = from; start < to; start++) {
+			search(start, distance, firstHop, q);
+		}
+	}
+
+	/**
+	 * Dijkstra from start without a target. States are settled in increasing order of their distance, so the
+	 * first settled state of a station gives the travel time to this station.
+	 */
+	private void search(int start, int[] distance, int[] firstHop, LongHeap q) {
+		int n = graph.size();
+		int row = start * n;
+		Arrays.fill(distance, Integer.MAX_VALUE);
+		Arrays.fill(times, row, row + n, -1);
+		if (nextHops != null) {
+			Arrays.fill(nextHops, row, row + n, -1);
+		}
+
+		distance[graph.stateOffsets[start]] = 0;
+		q.clear();
+		q.push(LongHeap.entry(0, graph.stateOffsets[start]));
+		while (!q.isEmpty()) {
+			long element = q.pop();
+			int state = LongHeap.value(element);
+			int time = LongHeap.key(element);
+			if (time > distance[state]) {
+				continue;
+			}
+			int station = graph.stationOf(state);
+			if (times[row + station] == -1) {
+				times[row + station] = time;
+				if (nextHops != null && station != start) {
+					nextHops[row + station] = firstHop[state];
+				}
+			}
+
+			int lastType = graph.typeOf(state);
+			for (int e = graph.offsets[station]; e < graph.offsets[station + 1]; e++) {
+				int type = graph.types[e];
+				int weight = graph.times[e];
+				if (type == lastType) {
+					weight -= graph.deductions[type];
+				}
+				int next = graph.targetStates[e];
+				int newDistance = time + weight;
+				if (newDistance < distance[next]) {
+					distance[next] = newDistance;
+					if (firstHop != null) {
+						firstHop[next] = station == start ? graph.targets[e] : firstHop[state];
+					}
+					q.push(LongHeap.entry(newDistance, next));
+				}
+			}
+		}
+	}
+}
+
+/**
+ * Fastest routes from one root station to all other stations of a TransportSystem. When the travel time of a single
+ * connection changes, only the part of the tree that depends on it is computed again:
+ * - if the time decreases, a Dijkstra search starts at the end of the connection and only continues as long as it
+ *   finds shorter distances,
+ * - if the time increases and the connection is part of the tree, the states below it lose their distance, get the
+ *   best distance over their unaffected predecessors and a Dijkstra search among them fixes the rest.
+ * States are (station, type of the last connection) like in TransportSystem.shortestPath.
+ */
+class ShortestPathTree {
+	private final TransportSystem system;
+	private final int rootId;
+
+	private TransitGraph graph;
+	private int[] distance;
+	// edge used to reach the state and the state it was reached from, -1 for the root
+	private int[] edge;
+	private int[] parent;
+	private final LongHeap q = new LongHeap();
+
+	ShortestPathTree(TransportSystem system, int rootId) {
+		this.system = system;
+		this.rootId = rootId;
+		build(system.graph());
+	}
+
+	private void build(TransitGraph graph) {
+		this.graph = graph;
+		int states = graph.stateCount();
+		distance = new int[states];
+		edge = new int[states];
+		parent = new int[states];
+		Arrays.fill(distance, Integer.MAX_VALUE);
+		int root = graph.stateOffsets[stationIndex(rootId)];
+		distance[root] = 0;
+		edge[root] = -1;
+		parent[root] = -1;
+		q.clear();
+		q.push(LongHeap.entry(0, root));
+		propagate();
+	}
+
+	/**
+	 * The tree is computed again if the network was compiled again since the last call. The caller gets the current
+	 * graph from system.graph() before it locks the tree: compiling the graph locks the system, and
+	 * updateTravelTime locks the system before it repairs the trees, so the tree must never wait for the system.
+	 */
+	private void ensureCurrent(TransitGraph current) {
+		if (current != graph) {
+			build(current);
+		}
+	}
+
+	// Same as TransportSystem.stationIndex, but on the graph of the tree so that the system is not locked
+	private int stationIndex(int id) {
+		int index = graph.indexOf(id);
+		if (index == -1) {
+			throw new IllegalArgumentException("Unknown station " + Station.format(id));
+		}
+		return index;
+	}
+
+	/**
+	 * @return the fastest travel time from the root to the station with this id or -1 if it cannot be reached
+	 * @throws IllegalArgumentException if there is no station with this id
+	 */
+	public int getTime(int stationId) {
+		TransitGraph current = system.graph();
+		synchronized (this) {
+			ensureCurrent(current);
+			int best = bestState(stationIndex(stationId));
+			return best == -1 ? -1 : distance[best];
+		}
+	}
+
+	/**
+	 * @return the fastest route from the root to the station with this id or null if it cannot be reached
+	 * @throws IllegalArgumentException if there is no station with this id
+	 */
+	public Route getRoute(int stationId) {
+		TransitGraph current = system.graph();
+		synchronized (this) {
+			ensureCurrent(current);
+			int best = bestState(stationIndex(stationId));
+			if (best == -1) {
+				return null;
+			}
+			ArrayList<Connection> connections = new ArrayList<>();
+			for (int state = best; edge[state] != -1; state = parent[state]) {
+				connections.add(graph.connection(edge[state]));
+			}
+			Collections.reverse(connections);
+			return new Route(distance[best], connections);
+		}
+	}
+
+	private int bestState(int station) {
+		int best = -1;
+		for (int state = graph.stateOffsets[station]; state < graph.stateOffsets[station + 1]; state++) {
+			if (distance[state] != Integer.MAX_VALUE && (best == -1 || distance[state] < distance[best])) {
+				best = state;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Called by TransportSystem after the time of edge e was changed from oldTime to graph.times[e].
+	 */
+	synchronized void edgeChanged(TransitGraph changed, int e, int oldTime) {
+		if (changed != graph) {
+			// the tree belongs to an older compilation and is built again when it is used the next time
+			return;
+		}
+		int newTime = graph.times[e];
+		if (newTime < oldTime) {
+			decreased(e);
+		} else if (newTime > oldTime) {
+			increased(e);
+		}
+	}
+
+	private void decreased(int e) {
+		int source = graph.sources[e];
+		int next = graph.targetStates[e];
+		q.clear();
+		for (int state = graph.stateOffsets[source]; state < graph.stateOffsets[source + 1]; state++) {
+			relax(state, e, next);
+		}
+		propagate();
+	}
+
+	private void increased(int e) {
+		int next = graph.targetStates[e];
+		if (edge[next] != e) {
+			// e is not part of the tree, so no distance depends on it
+			return;
+		}
+
+		// collect the subtree below e, the distances of these states may grow
+		int[] affected = new int[16];
+		int count = 0;
+		affected[count++] = next;
+		for (int i = 0; i < count; i++) {
+			int state = affected[i];
+			int station = graph.stationOf(state);
+			for (int child = graph.offsets[station]; child < graph.offsets[station + 1]; child++) {
+				int childState = graph.targetStates[child];
+				if (edge[childState] == child && parent[childState] == state) {
+					if (count == affected.length) {
+						affected = Arrays.copyOf(affected, 2 * count);
+					}
+					affected[count++] = childState;
+				}
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			distance[affected[i]] = Integer.MAX_VALUE;
+		}
+
+		// best distance over predecessors that are not affected, the search below handles the affected ones
+		q.clear();
+		for (int a = 0; a < count; a++) {
+			int state = affected[a];
+			int station = graph.stationOf(state);
+			int type = graph.typeOf(state);
+			for (int i = graph.reverseOffsets[station]; i < graph.reverseOffsets[station + 1]; i++) {
+				int in = graph.reverseEdges[i];
+				if (graph.types[in] != type) {
+					continue;
+				}
+				int source = graph.sources[in];
+				for (int from = graph.stateOffsets[source]; from < graph.stateOffsets[source + 1]; from++) {
+					relax(from, in, state);
+				}
+			}
+		}
+		propagate();
+	}
+
+	/**
+	 * Update the distance of state next if edge e from state from gives a shorter one.
+	 */
+	private void relax(int from, int e, int next) {
+		if (distance[from] == Integer.MAX_VALUE) {
+			return;
+		}
+		int type = graph.types[e];
+		int weight = graph.times[e];
+		if (graph.typeOf(from) == type) {
+			weight -= graph.deductions[type];
+		}
+		int newDistance = distance[from] + weight;
+		if (newDistance < distance[next]) {
+			distance[next] = newDistance;
+			edge[next] = e;
+			parent[next] = from;
+			q.push(LongHeap.entry(newDistance, next));
+		}
+	}
+
+	/**
+	 * Dijkstra from the states in the queue, it only continues where it finds shorter distances.
+	 */
+	private void propagate() {
+		while (!q.isEmpty()) {
+			long element = q.pop();
+			int state = LongHeap.value(element);
+			if (LongHeap.key(element) > distance[state]) {
+				continue;
+			}
+			int station = graph.stationOf(state);
+			for (int e = graph.offsets[station]; e < graph.offsets[station + 1]; e++) {
+				relax(state, e, graph.targetStates[e]);
+			}
+		}
+	}
+}
+
+/**
+ * Yen's algorithm for the k fastest routes on the graph of states (station, type of the last connection). Route
+ * i + 1 is the best deviation from one of the routes before: it follows a route up to a spur station and then takes
+ * the fastest way to the end that avoids the stations before the spur station and the connections that other routes
+ * with the same beginning take at the spur station. The spur search continues with the type of the last connection
+ * of the beginning, so the deduction of a same-type transfer at the spur station is kept.
+ *
+ * All spur searches share one backward search from the end: the remaining time from a state in the full network is
+ * a lower bound for the remaining time in a network with blocked stations and connections. The spur searches use it
+ * as A* heuristic, so they only settle the states close to the new route instead of searching the whole network.
+ */
+class AlternativeRouteSearch {
+	private final TransitGraph graph;
+	private final int start;
+	private final int end;
+
+	// lower bound of the time from a state to end, Integer.MAX_VALUE if end cannot be reached
+	private final int[] remaining;
+
+	// arrays of the spur searches, an entry is only valid if its stamp equals the current generation
+	private final int[] distance;
+	private final int[] edge;
+	private final int[] parent;
+	private final int[] stamp;
+	private final int[] blockedStation;
+	private final int[] blockedEdge;
+	private int generation;
+	private final LongHeap q = new LongHeap();
+
+	AlternativeRouteSearch(TransitGraph graph, int start, int end) {
+		this.graph = graph;
+		this.start = start;
+		this.end = end;
+		int states = graph.stateCount();
+		this.remaining = lowerBounds();
+		this.distance = new int[states];
+		this.edge = new int[states];
+		this.parent = new int[states];
+		this.stamp = new int[states];
+		this.blockedStation = new int[graph.size()];
+		this.blockedEdge = new int[graph.targets.length];
+	}
+
+	List<Route> find(int k) {
+		List<Route> routes = new ArrayList<>();
+		if (k <= 0) {
+			return routes;
+		}
+		// the fastest route is a spur at start with nothing blocked
+		generation++;
+		Candidate first = spur(new int[0], 0, start, -1, 0);
+		if (first == null) {
+			return routes;
+		}
+		List<Candidate> found = new ArrayList<>();
+		found.add(first);
+		PriorityQueue<Candidate> candidates = new PriorityQueue<>();
+		Set<Candidate> known = new HashSet<>();
+		known.add(first);
+
+		while (found.size() < k) {
+			Candidate previous = found.get(found.size() - 1);
+			int[] stations = previous.stations(graph, start);
+			int rootTime = 0;
+			int lastType = -1;
+			for (int i = 0; i < previous.edges.length; i++) {
+				generation++;
+				// the beginning of previous must not be visited again
+				for (int j = 0; j < i; j++) {
+					blockedStation[stations[j]] = generation;
+				}
+				// do not take the same connection as a route that starts like previous
+				for (Candidate route : found) {
+					if (route.edges.length > i && Arrays.equals(route.edges, 0, i, previous.edges, 0, i)) {
+						blockedEdge[route.edges[i]] = generation;
+					}
+				}
+				Candidate candidate = spur(previous.edges, i, stations[i], lastType, rootTime);
+				if (candidate != null && candidate.isSimple(graph, start) && known.add(candidate)) {
+					candidates.add(candidate);
+				}
+
+				int e = previous.edges[i];
+				rootTime += weight(lastType, e);
+				lastType = graph.types[e];
+			}
+			if (candidates.isEmpty()) {
+				break;
+			}
+			found.add(candidates.poll());
+		}
+
+		for (Candidate candidate : found) {
+			ArrayList<Connection> connections = new ArrayList<>();
+			for (int e : candidate.edges) {
+				connections.add(graph.connection(e));
+			}
+			routes.add(new Route(candidate.time, connections));
+		}
+		return routes;
+	}
+
+	private int weight(int lastType, int e) {
+		int type = graph.types[e];
+		return type == lastType ? graph.times[e] - graph.deductions[type] : graph.times[e];
+	}
+
+	/**
+	 * A* from the state (station, lastType) that was reached after the first rootLength edges of root in rootTime.
+	 *
+	 * @return root followed by the fastest way to end or null if end cannot be reached
+	 */
+	private Candidate spur(int[] root, int rootLength, int station, int lastType, int rootTime) {
+		int first = lastType == -1 ? graph.stateOffsets[station] : graph.stateOf(station, lastType);
+		if (remaining[first] == Integer.MAX_VALUE) {
+			return null;
+		}
+		q.clear();
+		set(first, rootTime, -1, -1);
+		q.push(LongHeap.entry(rootTime + remaining[first], first));
+		while (!q.isEmpty()) {
+			int state = LongHeap.value(q.pop());
+			int time = distance[state];
+			int current = graph.stationOf(state);
+			if (current == end) {
+				return candidate(root, rootLength, state);
+			}
+			if (stamp[state] == -generation) {
+				// outdated entry, the state is already settled
+				continue;
+			}
+			// a negative stamp marks the state as settled in this generation
+			stamp[state] = -generation;
+			int type = graph.typeOf(state);
+			for (int e = graph.offsets[current]; e < graph.offsets[current + 1]; e++) {
+				int neighbour = graph.targets[e];
+				if (blockedEdge[e] == generation || blockedStation[neighbour] == generation) {
+					continue;
+				}
+				int next = graph.targetStates[e];
+				if (remaining[next] == Integer.MAX_VALUE || stamp[next] == -generation) {
+					continue;
+				}
+				int newDistance = time + weight(type, e);
+				if (stamp[next] != generation || newDistance < distance[next]) {
+					set(next, newDistance, e, state);
+					q.push(LongHeap.entry(newDistance + remaining[next], next));
+				}
+			}
+		}
+		return null;
+	}
+
+	private void set(int state, int time, int e, int from) {
+		stamp[state] = generation;
+		distance[state] = time;
+		edge[state] = e;
+		parent[state] = from;
+	}
+
+	private Candidate candidate(int[] root, int rootLength, int endState) {
+		int spurLength = 0;
+		for (int state = endState; edge[state] != -1; state = parent[state]) {
+			spurLength++;
+		}
+		int[] edges = Arrays.copyOf(root, rootLength + spurLength);
+		int i = edges.length;
+		for (int state = endState; edge[state] != -1; state = parent[state]) {
+			edges[--i] = edge[state];
+		}
+		return new Candidate(edges, distance[endState]);
+	}
+
+	/**
+	 * Backward Dijkstra from end over all states. A backward state (v, b) is the time from v to end if the next
+	 * connection has type b, the lower bound of a forward state (v, a) is the minimum over all b minus the deduction
+	 * if a == b.
+	 */
+	private int[] lowerBounds() {
+		int[] backward = new int[graph.stateCount()];
+		Arrays.fill(backward, Integer.MAX_VALUE);
+		backward[graph.stateOffsets[end]] = 0;
+		LongHeap heap = new LongHeap();
+		heap.push(LongHeap.entry(0, graph.stateOffsets[end]));
+		while (!heap.isEmpty()) {
+			long element = heap.pop();
+			int state = LongHeap.value(element);
+			int time = LongHeap.key(element);
+			if (time > backward[state]) {
+				continue;
+			}
+			int station = graph.stationOf(state);
+			int nextType = graph.typeOf(state);
+			for (int i = graph.reverseOffsets[station]; i < graph.reverseOffsets[station + 1]; i++) {
+				int e = graph.reverseEdges[i];
+				int next = graph.sourceStates[e];
+				int newDistance = time + weight(nextType, e);
+				if (newDistance < backward[next]) {
+					backward[next] = newDistance;
+					heap.push(LongHeap.entry(newDistance, next));
+				}
+			}
+		}
+
+		int[] bounds = new int[backward.length];
+		for (int station = 0; station < graph.size(); station++) {
+			int first = graph.stateOffsets[station];
+			int last = graph.stateOffsets[station + 1];
+			for (int a = first; a < last; a++) {
+				int bound = station == end ? 0 : Integer.MAX_VALUE;
+				// the first state of a station is never reached by the backward search except at end
+				for (int b = first + 1; b < last; b++) {
+					int time = backward[b];
+					if (time != Integer.MAX_VALUE) {
+						int type = graph.typeOf(b);
+						bound = Math.min(bound, graph.typeOf(a) == type ? time - graph.deductions[type] : time);
+					}
+				}
+				bounds[a] = bound;
+			}
+		}
+		return bounds;
+	}
+}
+
+/**
+ * Route of AlternativeRouteSearch as list of edges of the graph. Two candidates are equal if they have the same edges.
+ */
+class Candidate implements Comparable<Candidate> {
+	final int[] edges;
+	final int time;
+
+	Candidate(int[] edges, int time) {
+		this.edges = edges;
+		this.time = time;
+	}
+
+	int[] stations(TransitGraph graph, int start) {
+		int[] stations = new int[edges.length + 1];
+		stations[0] = start;
+		for (int i = 0; i < edges.length; i++) {
+			stations[i + 1] = graph.targets[edges[i]];
+		}
+		return stations;
+	}
+
+	/**
+	 * @return true if the route does not visit a station twice
+	 */
+	boolean isSimple(TransitGraph graph, int start) {
+		int[] stations = stations(graph, start);
+		Arrays.sort(stations);
+		for (int i = 1; i < stations.length; i++) {
+			if (stations[i] == stations[i - 1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int compareTo(Candidate o) {
+		return Integer.compare(time, o.time);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof Candidate other && Arrays.equals(edges, other.edges);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(edges);
+	}
+}
+
+/**
+ * Distance tables of a few landmark stations for the lower bounds of A* (ALT). By the triangle inequality,
+ * d(v, t) >= d(L, t) - d(L, v) and d(v, t) >= d(v, L) - d(t, L) for every landmark L.
+ *
+ * The distances are computed between stations with the weight time - deduction for every connection, which is the
+ * least a connection can cost after a connection of the same type. Every route costs at least as much in this graph
+ * as with the real deductions, so the bounds never overestimate. Since they are bounds of a plain graph without
+ * states, they are also consistent and A* settles every state only once.
+ *
+ * The tables store the distances of all landmarks of a station next to each other, so a lower bound reads two
+ * short runs of ints.
+ */
+class Landmarks {
+	private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	final TransitGraph graph;
+	private final int count;
+	// distance from landmark i to station v at v * count + i and from v to landmark i
+	private final int[] fromLandmark;
+	private final int[] toLandmark;
+
+	private Landmarks(TransitGraph graph, int count, int[] fromLandmark, int[] toLandmark) {
+		this.graph = graph;
+		this.count = count;
+		this.fromLandmark = fromLandmark;
+		this.toLandmark = toLandmark;
+	}
+
+	/**
+	 * Choose the landmarks one after the other, each one is the station that is farthest away from all landmarks
+	 * chosen so far. Stations that no landmark reaches are taken first, so every part of a network that is not
+	 * connected gets a landmark. This places the landmarks at the border of the network, where they give good
+	 * bounds for long routes.
+	 *
+	 * @throws IllegalArgumentException if count is not positive
+	 */
+	static Landmarks compute(TransitGraph graph, int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Number of landmarks must be positive: " + count);
+		}
+		int n = graph.size();
+		count = Math.min(count, n);
+		int[] fromLandmark = new int[n * count];
+		int[] toLandmark = new int[n * count];
+		// smallest distance of every station from one of the chosen landmarks
+		int[] nearest = new int[n];
+		Arrays.fill(nearest, UNREACHABLE);
+		int[] distance = new int[n];
+		LongHeap q = new LongHeap();
+
+		// the first landmark is the station farthest away from station 0
+		distances(graph, 0, false, distance, q);
+		int landmark = farthest(distance);
+		for (int i = 0; i < count; i++) {
+			distances(graph, landmark, false, distance, q);
+			for (int v = 0; v < n; v++) {
+				fromLandmark[v * count + i] = distance[v];
+				nearest[v] = Math.min(nearest[v], distance[v]);
+			}
+			distances(graph, landmark, true, distance, q);
+			for (int v = 0; v < n; v++) {
+				toLandmark[v * count + i] = distance[v];
+			}
+			// the nearest distance of a landmark is 0, so it is never chosen again while there are other stations
+			landmark = farthest(nearest);
+		}
+		return new Landmarks(graph, count, fromLandmark, toLandmark);
+	}
+
+	/**
+	 * @return a lower bound of the travel time from station v to station t, UNREACHABLE if t cannot be reached
+	 */
+	int lowerBound(int v, int t) {
+		int bound = 0;
+		int vi = v * count;
+		int ti = t * count;
+		for (int i = 0; i < count; i++) {
+			int landmarkToV = fromLandmark[vi + i];
+			int landmarkToT = fromLandmark[ti + i];
+			if (landmarkToV != UNREACHABLE) {
+				if (landmarkToT == UNREACHABLE) {
+					// the landmark reaches v but not t, so v does not reach t either
+					return UNREACHABLE;
+				}
+				bound = Math.max(bound, landmarkToT - landmarkToV);
+			}
+			int vToLandmark = toLandmark[vi + i];
+			int tToLandmark = toLandmark[ti + i];
+			if (tToLandmark != UNREACHABLE) {
+				if (vToLandmark == UNREACHABLE) {
+					// t reaches the landmark but v does not, so v does not reach t either
+					return UNREACHABLE;
+				}
+				bound = Math.max(bound, vToLandmark - tToLandmark);
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * @return the station with the largest distance, unreachable stations count as infinitely far away
+	 */
+	private static int farthest(int[] distance) {
+		int farthest = 0;
+		for (int v = 1; v < distance.length; v++) {
+			if (Integer.compareUnsigned(distance[v], distance[farthest]) > 0) {
+				farthest = v;
+			}
+		}
+		return farthest;
+	}
+
+	/**
+	 * Dijkstra between stations with the weights time - deduction, from source or with reverse to source.
+	 */
+	private static void distances(TransitGraph graph, int source, boolean reverse, int[] distance, LongHeap q) {
+		Arrays.fill(distance, UNREACHABLE);
+		distance[source] = 0;
+		q.clear();
+		q.push(LongHeap.entry(0, source));
+		int[] offsets = reverse ? graph.reverseOffsets : graph.offsets;
+		while (!q.isEmpty()) {
+			long element = q.pop();
+			int station = LongHeap.value(element);
+			int time = LongHeap.key(element);
+			if (time > distance[station]) {
+				continue;
+			}
+			for (int i = offsets[station]; i < offsets[station + 1]; i++) {
+				int e = reverse ? graph.reverseEdges[i] : i;
+				int next = reverse ? graph.sources[e] : graph.targets[e];
+				int newDistance = time + graph.times[e] - graph.deductions[graph.types[e]];
+				if (newDistance < distance[next]) {
+					distance[next] = newDistance;
+					q.push(LongHeap.entry(newDistance, next));
+				}
+			}
+		}
+	}
+}
+
+/**
+ * Timetable of scheduled services for earliest arrival queries with the Connection Scan Algorithm. Every elementary
+ * connection (one vehicle from one stop to the next) is stored in primitive arrays sorted by departure time, so a
+ * query is a single pass over a contiguous range of the arrays: a connection can be used if we are already at its
+ * departure station at its departure time or if we already sit in its trip. The pass stops as soon as connections
+ * depart after the best arrival at the target.
+ *
+ * We only sit in a trip from the connection where we boarded it on. Connections that take no time are scanned again
+ * within their departure instant, so a connection of a trip can be scanned after a later one of the same trip; the
+ * position of every connection in its trip keeps us from riding backwards in that case.
+ *
+ * Times are ints in any unit, e.g. seconds after midnight. Transfers take no time.
+ */
+class Timetable {
+	private final int[] departureStations;
+	private final int[] arrivalStations;
+	private final int[] departureTimes;
+	private final int[] arrivalTimes;
+	// trip of the connection or -1, consecutive connections of a trip can be used without a transfer
+	private final int[] trips;
+	// position of the connection in its trip, 0 for the first connection
+	private final int[] sequences;
+	private final int tripCount;
+
+	private final IntIntMap ids;
+
+	// arrays of the queries of one thread, an entry is only valid if its stamp equals the current generation
+	private final ThreadLocal<ScanWorkspace> workspaces;
+
+	Timetable(int[] departureStations, int[] arrivalStations, int[] departureTimes, int[] arrivalTimes, int[] trips,
+			int[] sequences, int tripCount, IntIntMap ids) {
+		this.departureStations = departureStations;
+		this.arrivalStations = arrivalStations;
+		this.departureTimes = departureTimes;
+		this.arrivalTimes = arrivalTimes;
+		this.trips = trips;
+		this.sequences = sequences;
+		this.tripCount = tripCount;
+		this.ids = ids;
+		this.workspaces = ThreadLocal.withInitial(() -> new ScanWorkspace(ids.size(), tripCount));
+	}
+
+	public int size() {
+		return departureTimes.length;
+	}
+
+	/**
+	 * @param from id of the station where the journey starts
+	 * @param to id of the station where the journey ends
+	 * @param departureTime earliest time at which we can leave from
+	 * @return the earliest time at which we can arrive at to or -1 if to cannot be reached
+	 * @throws IllegalArgumentException if there is no station with id from or to
+	 */
+	public int earliestArrival(int from, int to, int departureTime) {
+		int start = stationIndex(from);
+		int target = stationIndex(to);
+		if (start == target) {
+			return departureTime;
+		}
+		ScanWorkspace workspace = workspaces.get();
+		workspace.reset();
+		workspace.setArrival(start, departureTime);
+
+		int groupStart = firstDeparture(departureTime);
+		boolean rescan = false;
+		for (int i = groupStart; i <= departureTimes.length; i++) {
+			if (i == departureTimes.length || departureTimes[i] != departureTimes[groupStart]) {
+				if (rescan) {
+					// a connection that takes no time reached a station from which an earlier connection of the same
+					// instant departs, so scan the connections of this instant again
+					rescan = false;
+					i = groupStart - 1;
+					continue;
+				}
+				if (i == departureTimes.length) {
+					break;
+				}
+				groupStart = i;
+			}
+			int departure = departureTimes[i];
+			if (departure >= workspace.arrival(target)) {
+				// all remaining connections depart too late to improve the arrival at target
+				break;
+			}
+			int trip = trips[i];
+			if ((trip != -1 && workspace.boardedAt(trip) <= sequences[i])
+					|| workspace.arrival(departureStations[i]) <= departure) {
+				if (trip != -1) {
+					workspace.board(trip, sequences[i]);
+				}
+				if (arrivalTimes[i] < workspace.arrival(arrivalStations[i])) {
+					workspace.setArrival(arrivalStations[i], arrivalTimes[i]);
+					rescan |= arrivalTimes[i] == departure;
+				}
+			}
+		}
+		int arrival = workspace.arrival(target);
+		return arrival == Integer.MAX_VALUE ? -1 : arrival;
+	}
+
+	/**
+	 * @return index of the first connection that departs at time or later
+	 */
+	private int firstDeparture(int time) {
+		int low = 0;
+		int high = departureTimes.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (departureTimes[middle] < time) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private int stationIndex(int id) {
+		int index = ids.get(id);
+		if (index == -1) {
+			throw new IllegalArgumentException("Unknown station " + Station.format(id));
+		}
+		return index;
+	}
+}
+
+/**
+ * Arrival times per station and boarded trips of the queries of one thread. For a trip we keep the position of the
+ * earliest connection where it was boarded, all connections of the trip from there on can be used.
+ */
+class ScanWorkspace {
+	private final int[] arrival;
+	private final int[] arrivalStamp;
+	private final int[] boarded;
+	private final int[] tripStamp;
+	private int generation;
+
+	ScanWorkspace(int stations, int trips) {
+		arrival = new int[stations];
+		arrivalStamp = new int[stations];
+		boarded = new int[trips];
+		tripStamp = new int[trips];
+	}
+
+	void reset() {
+		generation++;
+		if (generation == 0) {
+			// the generation overflowed, so old stamps could look valid again
+			Arrays.fill(arrivalStamp, 0);
+			Arrays.fill(tripStamp, 0);
+			generation = 1;
+		}
+	}
+
+	int arrival(int station) {
+		return arrivalStamp[station] == generation ? arrival[station] : Integer.MAX_VALUE;
+	}
+
+	void setArrival(int station, int time) {
+		arrivalStamp[station] = generation;
+		arrival[station] = time;
+	}
+
+	/**
+	 * @return position of the earliest connection of the trip where it was boarded or Integer.MAX_VALUE
+	 */
+	int boardedAt(int trip) {
+		return tripStamp[trip] == generation ? boarded[trip] : Integer.MAX_VALUE;
+	}
+
+	void board(int trip, int sequence) {
+		if (sequence < boardedAt(trip)) {
+			tripStamp[trip] = generation;
+			boarded[trip] = sequence;
+		}
+	}
+}
+
+/**
+ * Collects the connections of a Timetable. Stations and trips may have arbitrary int ids, they are numbered densely
+ * when the timetable is built.
+ */
+class TimetableBuilder {
+	private int[] departureStations = new int[16];
+	private int[] arrivalStations = new int[16];
+	private int[] departureTimes = new int[16];
+	private int[] arrivalTimes = new int[16];
+	private int[] trips = new int[16];
+	private int size;
+
+	private final IntIntMap stationIds = new IntIntMap(16);
+	private final IntIntMap tripIds = new IntIntMap(16);
+
+	/**
+	 * Add a connection without a trip, using it always counts as a transfer.
+	 *
+	 * @throws IllegalArgumentException if a time is negative or the connection arrives before it departs
+	 */
+	public TimetableBuilder add(int from, int to, int departureTime, int arrivalTime) {
+		return add(from, to, departureTime, arrivalTime, -1);
+	}
+
+	/**
+	 * @param trip id of the vehicle run this connection belongs to or -1
+	 * @throws IllegalArgumentException if a time is negative or the connection arrives before it departs
+	 */
+	public TimetableBuilder add(int from, int to, int departureTime, int arrivalTime, int trip) {
+		if (departureTime < 0 || arrivalTime < departureTime) {
+			throw new IllegalArgumentException("Invalid connection times " + departureTime + " -> " + arrivalTime);
+		}
+		if (size == departureTimes.length) {
+			departureStations = Arrays.copyOf(departureStations, 2 * size);
+			arrivalStations = Arrays.copyOf(arrivalStations, 2 * size);
+			departureTimes = Arrays.copyOf(departureTimes, 2 * size);
+			arrivalTimes = Arrays.copyOf(arrivalTimes, 2 * size);
+			trips = Arrays.copyOf(trips, 2 * size);
+		}
+		departureStations[size] = index(stationIds, from);
+		arrivalStations[size] = index(stationIds, to);
+		departureTimes[size] = departureTime;
+		arrivalTimes[size] = arrivalTime;
+		trips[size] = trip == -1 ? -1 : index(tripIds, trip);
+		size++;
+		return this;
+	}
+
+	private static int index(IntIntMap map, int id) {
+		int index = map.get(id);
+		if (index == -1) {
+			index = map.size();
+			map.put(id, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Sort the connections by departure time. Connections with the same departure time are sorted by arrival time,
+	 * so connections that take no time come first in their group, and then by the order in which they were added. The
+	 * connections of a trip must be added in the order in which the vehicle runs them, this sorted order is their
+	 * position in the trip.
+	 */
+	public Timetable build() {
+		// sort keys are (time << 32 | index), so sorting primitive longs needs no comparator objects
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) arrivalTimes[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] arrivalRank = new int[size];
+		for (int rank = 0; rank < size; rank++) {
+			arrivalRank[(int) keys[rank]] = rank;
+		}
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) departureTimes[i] << 32) | arrivalRank[i];
+		}
+		Arrays.sort(keys);
+
+		int[] byRank = new int[size];
+		for (int i = 0; i < size; i++) {
+			byRank[arrivalRank[i]] = i;
+		}
+		int[] sortedDepartureStations = new int[size];
+		int[] sortedArrivalStations = new int[size];
+		int[] sortedDepartureTimes = new int[size];
+		int[] sortedArrivalTimes = new int[size];
+		int[] sortedTrips = new int[size];
+		int[] sequences = new int[size];
+		// number of connections of each trip seen so far
+		int[] tripLengths = new int[tripIds.size()];
+		for (int j = 0; j < size; j++) {
+			int i = byRank[(int) keys[j]];
+			sortedDepartureStations[j] = departureStations[i];
+			sortedArrivalStations[j] = arrivalStations[i];
+			sortedDepartureTimes[j] = departureTimes[i];
+			sortedArrivalTimes[j] = arrivalTimes[i];
+			sortedTrips[j] = trips[i];
+			if (trips[i] != -1) {
+				sequences[j] = tripLengths[trips[i]]++;
+			}
+		}
+		return new Timetable(sortedDepartureStations, sortedArrivalStations, sortedDepartureTimes, sortedArrivalTimes,
+				sortedTrips, sequences, tripIds.size(), stationIds);
+	}
+}
+
+/**
+ * Fastest travel times between all pairs of stations in one flat int array, row from contains the times from
+ * station from to all other stations. Stations are given by their position, getStationId maps a position to the id
+ * of the station.
+ */
+class TravelTimeMatrix {
+	private final int n;
+	private final int[] times;
+	private final int[] nextHops;
+	// shared with the graph the matrix was computed on, never changed
+	private final int[] stationIds;
+
+	TravelTimeMatrix(int n, int[] times, int[] nextHops, int[] stationIds) {
+		this.n = n;
+		this.times = times;
+		this.nextHops = nextHops;
+		this.stationIds = stationIds;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * @return the id of the station at this position of the matrix
+	 */
+	public int getStationId(int position) {
+		return stationIds[position];
+	}
+
+	/**
+	 * @return the fastest travel time from station from to station to or -1 if to cannot be reached
+	 */
+	public int getTime(int from, int to) {
+		return times[from * n + to];
+	}
+
+	/**
+	 * @return the position of the station that follows from on the fastest route to to, or -1 if there is no such
+	 * station
+	 * @throws IllegalStateException if the matrix was computed without next hops
+	 */
+	public int getNextHop(int from, int to) {
+		if (nextHops == null) {
+			throw new IllegalStateException("Travel time matrix was computed without next hops");
+		}
+		return nextHops[from * n + to];
+	}
+}
+
+/**
+ * Stations that can be reached within a time budget, see TransportSystem.isochrone. Entry i is the station
+ * getStationIds()[i] with the fastest travel time getTimes()[i], the entries are ordered by their time.
+ */
+class Isochrone {
+	private final int[] stationIds;
+	private final int[] times;
+
+	Isochrone(int[] stationIds, int[] times) {
+		this.stationIds = stationIds;
+		this.times = times;
+	}
+
+	public int size() {
+		return stationIds.length;
+	}
+
+	/**
+	 * @return the ids of the reachable stations, the array is not copied
+	 */
+	public int[] getStationIds() {
+		return stationIds;
+	}
+
+	/**
+	 * @return the fastest travel times to the reachable stations, the array is not copied
+	 */
+	public int[] getTimes() {
+		return times;
+	}
+}
+
+/**
+ * Bounded cache of routes that many threads can use at the same time. The keys are split over segments, every
+ * segment has its own lock and an open addressing table of packed (from id, to id) keys. A hit therefore only locks
+ * one segment for a few array accesses and creates no object. Eviction is CLOCK, an approximation of least recently
+ * used: a hit marks the entry as referenced and a full segment evicts the next entry of its clock hand that was not
+ * referenced since the hand passed it last time.
+ *
+ * The generation is increased on every invalidation, a route that was computed for an older generation is not
+ * stored because the network may have changed in the meantime.
+ */
+class RouteCache {
+	private final int capacity;
+	private final Segment[] segments;
+	private final int segmentMask;
+
+	// only changed while this is locked, put reads it under the lock of its segment
+	private volatile long generation;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param capacity maximum number of routes, it is split evenly over the segments and rounded up
+	 */
+	RouteCache(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative cache capacity " + capacity);
+		}
+		this.capacity = capacity;
+		int count = capacity == 0 ? 0
+				: Integer.highestOneBit(Math.min(capacity, 4 * Runtime.getRuntime().availableProcessors()));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment((capacity + count - 1) / count);
+		}
+		this.segmentMask = count - 1;
+	}
+
+	/**
+	 * @return the key of the route from station id from to station id to
+	 */
+	static long key(int from, int to) {
+		return (long) from << 32 | (to & 0xFFFFFFFFL);
+	}
+
+	Route get(long key) {
+		Route route = segments.length == 0 ? null : segment(key).get(key);
+		if (route == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return route;
+	}
+
+	long generation() {
+		return generation;
+	}
+
+	void put(long key, Route route, long generation) {
+		if (segments.length > 0) {
+			segment(key).put(key, route, generation);
+		}
+	}
+
+	synchronized void invalidate() {
+		generation++;
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * Drop the routes that use the connection of this type from station id from to station id to. This is enough if
+	 * its travel time increased: every other route keeps its time and is still the fastest one.
+	 */
+	synchronized void invalidate(int from, int to, int type) {
+		generation++;
+		for (Segment segment : segments) {
+			segment.removeUsing(from, to, type);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public double getHitRate() {
+		long hits = getHits();
+		long requests = hits + getMisses();
+		return requests == 0 ? 0 : (double) hits / requests;
+	}
+
+	@Override
+	public String toString() {
+		return "RouteCache(size=" + size() + ", capacity=" + capacity + ", hits=" + getHits() + ", misses="
+				+ getMisses() + ", evictions=" + getEvictions() + ")";
+	}
+
+	private Segment segment(long key) {
+		return segments[(int) (mix(key) >>> 40) & segmentMask];
+	}
+
+	private static long mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+
+	/**
+	 * One part of the cache, all methods are synchronized. Linear probing like FileIndex of the WaitQueueServer, a
+	 * slot is free if its route is null and removing an entry moves the following entries of its probe sequence back.
+	 */
+	private final class Segment {
+		private final int capacity;
+		private final long[] keys;
+		private final Route[] routes;
+		private final boolean[] referenced;
+		private final int mask;
+		private int size;
+		// next slot the clock looks at
+		private int hand;
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+			int length = Integer.highestOneBit(Math.max(2, 2 * capacity - 1)) << 1;
+			keys = new long[length];
+			routes = new Route[length];
+			referenced = new boolean[length];
+			mask = length - 1;
+		}
+
+		synchronized Route get(long key) {
+			int slot = find(key);
+			if (slot == -1) {
+				return null;
+			}
+			referenced[slot] = true;
+			return routes[slot];
+		}
+
+		synchronized void put(long key, Route route, long generation) {
+			if (generation != RouteCache.this.generation) {
+				return;
+			}
+			int slot = find(key);
+			if (slot == -1) {
+				if (size == capacity) {
+					evict();
+				}
+				slot = (int) mix(key) & mask;
+				while (routes[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+				size++;
+			}
+			routes[slot] = route;
+			referenced[slot] = false;
+		}
+
+		synchronized void clear() {
+			Arrays.fill(routes, null);
+			Arrays.fill(referenced, false);
+			size = 0;
+		}
+
+		synchronized void removeUsing(int from, int to, int type) {
+			for (int slot = 0; slot < routes.length; slot++) {
+				// remove moves a following entry into slot, so we look at slot again
+				while (routes[slot] != null && uses(keys[slot], routes[slot], from, to, type)) {
+					remove(slot);
+				}
+			}
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		private void evict() {
+			while (true) {
+				int slot = hand;
+				hand = (hand + 1) & mask;
+				if (routes[slot] == null) {
+					continue;
+				}
+				if (referenced[slot]) { // second chance
+					referenced[slot] = false;
+					continue;
+				}
+				remove(slot);
+				evictions.increment();
+				return;
+			}
+		}
+
+		private void remove(int slot) {
+			int gap = slot;
+			int next = (gap + 1) & mask;
+			while (routes[next] != null) {
+				int home = (int) mix(keys[next]) & mask;
+				// The entry at next may fill the gap if its home slot is not between gap and next
+				if (((next - home) & mask) >= ((next - gap) & mask)) {
+					keys[gap] = keys[next];
+					routes[gap] = routes[next];
+					referenced[gap] = referenced[next];
+					gap = next;
+				}
+				next = (next + 1) & mask;
+			}
+			routes[gap] = null;
+			referenced[gap] = false;
+			size--;
+		}
+
+		private int find(long key) {
+			int slot = (int) mix(key) & mask;
+			while (routes[slot] != null) {
+				if (keys[slot] == key) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+	}
+
+	// Whether the route with this key takes the connection of this type from station from to station to
+	private static boolean uses(long key, Route route, int from, int to, int type) {
+		int station = (int) (key >>> 32);
+		for (Connection connection : route.getConnections()) {
+			int next = connection.getNextStationId();
+			if (station == from && next == to && connection.getType() == type) {
+				return true;
+			}
+			station = next;
+		}
+		return false;
+	}
+}
+
+/**
+ * Statistics of the route searches of one TransportSystem. A search counts its work in local variables and only
+ * passes them to record if the metrics are enabled or a flight recording takes RouteQueryEvents, so a search that is
+ * not instrumented never touches shared memory. The sums are LongAdders, hence many threads can record at the same
+ * time without contending for one counter.
+ */
+class SearchMetrics {
+	private volatile boolean enabled;
+
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder settledStates = new LongAdder();
+	private final LongAdder pushes = new LongAdder();
+	private final LongAdder relaxations = new LongAdder();
+	private final LongAdder stalePops = new LongAdder();
+	private final LongAdder nanos = new LongAdder();
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Add the counts of one search to the sums and commit the event if the flight recorder wants it.
+	 *
+	 * @param engine name of the search, e.g. "bidirectional"
+	 * @param found true if a route was found
+	 */
+	void record(RouteQueryEvent event, String engine, int from, int to, boolean found, int settled, int pushes,
+			int relaxations, int stalePops, long nanos) {
+		if (enabled) {
+			this.queries.increment();
+			this.settledStates.add(settled);
+			this.pushes.add(pushes);
+			this.relaxations.add(relaxations);
+			this.stalePops.add(stalePops);
+			this.nanos.add(nanos);
+		}
+		if (event.shouldCommit()) {
+			event.engine = engine;
+			event.from = from;
+			event.to = to;
+			event.found = found;
+			event.settledStates = settled;
+			event.pushes = pushes;
+			event.relaxations = relaxations;
+			event.stalePops = stalePops;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return the sums of all searches since the last reset, the sums of searches that run at the same time may
+	 * be included partially
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(queries.sum(), settledStates.sum(), pushes.sum(), relaxations.sum(), stalePops.sum(),
+				nanos.sum());
+	}
+
+	public void reset() {
+		queries.reset();
+		settledStates.reset();
+		pushes.reset();
+		relaxations.reset();
+		stalePops.reset();
+		nanos.reset();
+	}
+
+	/**
+	 * Sums of the counts of all recorded searches. Relaxations are the connections that were looked at, stale pops
+	 * are outdated queue entries that had to be skipped.
+	 */
+	record Snapshot(long queries, long settledStates, long pushes, long relaxations, long stalePops, long nanos) {
+		public double averageSettledStates() {
+			return queries == 0 ? 0 : (double) settledStates / queries;
+		}
+
+		public double averageMillis() {
+			return queries == 0 ? 0 : nanos / 1e6 / queries;
+		}
+	}
+}
+
+/**
+ * Flight recorder event of one route search, enable it with
+ * -XX:StartFlightRecording or in a recording configuration with the name transport.RouteQuery.
+ * The duration of the event is the time of the search.
+ */
+@Name("transport.RouteQuery")
+@Label("Route Query")
+@Category("Transport")
+@Description("One search of a route in a TransportSystem")
+class RouteQueryEvent extends Event {
+	@Label("Engine")
+	String engine;
+
+	@Label("From")
+	int from;
+
+	@Label("To")
+	int to;
+
+	@Label("Found")
+	boolean found;
+
+	@Label("Settled States")
+	int settledStates;
+
+	@Label("Pushes")
+	int pushes;
+
+	@Label("Relaxations")
+	int relaxations;
+
+	@Label("Stale Pops")
+	int stalePops;
+}
+
+/**
+ * Reads and writes networks without creating Station objects.
+ *
+ * An edge list is a text file with one connection per line: "station mode target distance", e.g. "17 Bus 42 3".
+ * Station ids are ints, mode is Bus, Tram, Train or a mode added with Connection.register and empty lines or lines
+ * starting with # are ignored.
+ *
+ * A snapshot stores the arrays of a compiled TransitGraph as little endian ints:
+ * magic, version, n, m, number of types, deductions, station ids, offsets, targets, distances, times, types.
+ * Reading it maps the file into memory and copies every array in one bulk operation, so nothing has to be parsed.
+ */
+class NetworkFiles {
+	static final int MAGIC = 0x54534E50; // "TSNP"
+	static final int VERSION = 1;
+	private static final int HEADER_INTS = 5;
+
+	/**
+	 * @throws IOException if the file cannot be read or a line is malformed
+	 */
+	static TransitGraph readEdgeList(Path file) throws IOException {
+		IntIntMap ids = new IntIntMap(1024);
+		int[] stationIds = new int[1024];
+		int n = 0;
+		int[] sources = new int[1024];
+		int[] targets = new int[1024];
+		int[] distances = new int[1024];
+		int[] times = new int[1024];
+		int[] types = new int[1024];
+		int m = 0;
+		int[] deductions = new int[0];
+		// start and end of the four fields of a line
+		int[] fields = new int[8];
+
+		try (BufferedReader reader = Files.newBufferedReader(file)) {
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				int count = split(line, fields);
+				if (count == 0 || line.charAt(fields[0]) == '#') {
+					continue;
+				}
+				if (count != 4) {
+					throw new IOException(file + ":" + lineNumber + ": expected \"station mode target distance\"");
+				}
+				int source;
+				int target;
+				try {
+					source = Integer.parseInt(line, fields[0], fields[1], 10);
+					int type = Connection.typeOf(line.substring(fields[2], fields[3]));
+					target = Integer.parseInt(line, fields[4], fields[5], 10);
+					int distance = Integer.parseInt(line, fields[6], fields[7], 10);
+					// only needed for the time and the deduction of the type, the graph creates connections on demand
+					Connection connection = Connection.create(type, target, distance);
+					deductions = TransitGraph.addDeduction(deductions, connection);
+					if (m == sources.length) {
+						sources = Arrays.copyOf(sources, 2 * m);
+						targets = Arrays.copyOf(targets, 2 * m);
+						distances = Arrays.copyOf(distances, 2 * m);
+						times = Arrays.copyOf(times, 2 * m);
+						types = Arrays.copyOf(types, 2 * m);
+					}
+					distances[m] = distance;
+					times[m] = connection.getTime();
+					types[m] = type;
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage(), e);
+				}
+
+				// stations are numbered in the order in which they appear for the first time
+				for (int k = 0; k < 2; k++) {
+					int id = k == 0 ? source : target;
+					if (ids.get(id) == -1) {
+						if (n == stationIds.length) {
+							stationIds = Arrays.copyOf(stationIds, 2 * n);
+						}
+						ids.put(id, n);
+						stationIds[n++] = id;
+					}
+				}
+				sources[m] = ids.get(source);
+				targets[m] = ids.get(target);
+				m++;
+			}
+		}
+
+		// counting sort of the edges by their source, the order of the lines is kept for each station
+		int[] offsets = new int[n + 1];
+		for (int e = 0; e < m; e++) {
+			offsets[sources[e] + 1]++;
+		}
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		int[] position = Arrays.copyOf(offsets, n);
+		int[] sortedTargets = new int[m];
+		int[] sortedDistances = new int[m];
+		int[] sortedTimes = new int[m];
+		int[] sortedTypes = new int[m];
+		for (int e = 0; e < m; e++) {
+			int i = position[sources[e]]++;
+			sortedTargets[i] = targets[e];
+			sortedDistances[i] = distances[e];
+			sortedTimes[i] = times[e];
+			sortedTypes[i] = types[e];
 		}
+		return new TransitGraph(offsets, sortedTargets, sortedDistances, sortedTimes, sortedTypes, deductions,
+				new Connection[m], Arrays.copyOf(stationIds, n), ids);
 	}
 
-	public Route findFastestRoute() {
-		return shortestPath(stations.getFirst(), stations.getLast(), null, 0);
+	/**
+	 * Finds the fields of a line that are separated by whitespace without creating strings. Field k starts at
+	 * fields[2 * k] and ends before fields[2 * k + 1].
+	 *
+	 * @return the number of fields, only the first fields.length / 2 are stored
+	 */
+	private static int split(String line, int[] fields) {
+		int count = 0;
+		int i = 0;
+		int length = line.length();
+		while (true) {
+			while (i < length && Character.isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (i == length) {
+				return count;
+			}
+			int start = i;
+			while (i < length && !Character.isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (2 * count < fields.length) {
+				fields[2 * count] = start;
+				fields[2 * count + 1] = i;
+			}
+			count++;
+		}
+	}
+
+	static void writeSnapshot(TransitGraph graph, Path file) throws IOException {
+		int n = graph.size();
+		int m = graph.targets.length;
+		int types = graph.deductions.length;
+		for (int type : graph.types) {
+			if (!Connection.isRegistered(type)) {
+				throw new IOException("Connection type " + type + " is not registered, the snapshot could not be loaded");
+			}
+		}
+		long bytes = 4L * (HEADER_INTS + types + n + (n + 1) + 4L * m);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+			IntBuffer ints = buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			ints.put(MAGIC).put(VERSION).put(n).put(m).put(types);
+			ints.put(graph.deductions);
+			ints.put(graph.stationIds);
+			ints.put(graph.offsets);
+			ints.put(graph.targets);
+			ints.put(graph.distances);
+			ints.put(graph.times);
+			ints.put(graph.types);
+			buffer.force();
+		}
+	}
+
+	/**
+	 * @throws IOException if the file cannot be read, is not a snapshot of this version or its arrays do not form a
+	 * valid graph
+	 */
+	static TransitGraph readSnapshot(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < 4L * HEADER_INTS) {
+				throw new IOException(file + " is not a network snapshot");
+			}
+			IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN)
+					.asIntBuffer();
+			if (ints.get() != MAGIC) {
+				throw new IOException(file + " is not a network snapshot");
+			}
+			int version = ints.get();
+			if (version != VERSION) {
+				throw new IOException(file + " has snapshot version " + version + ", expected " + VERSION);
+			}
+			int n = ints.get();
+			int m = ints.get();
+			int types = ints.get();
+			if (n < 0 || m < 0 || types < 0
+					|| size != 4L * (HEADER_INTS + types + n + (n + 1) + 4L * m)) {
+				throw new IOException(file + " is truncated or corrupt");
+			}
+
+			int[] deductions = read(ints, types);
+			int[] stationIds = read(ints, n);
+			int[] offsets = read(ints, n + 1);
+			int[] targets = read(ints, m);
+			int[] distances = read(ints, m);
+			int[] times = read(ints, m);
+			int[] edgeTypes = read(ints, m);
+			for (int e = 0; e < m; e++) {
+				int type = edgeTypes[e];
+				if (type < 0 || type >= types) {
+					throw new IOException(file + " is truncated or corrupt");
+				}
+				// the searches need non-negative weights, time - deduction for a connection of the same type
+				if (times[e] < 0 || times[e] < deductions[type]) {
+					throw new IOException(file + " is truncated or corrupt");
+				}
+				if (!Connection.isRegistered(type)) {
+					throw new IOException(file + " has connection type " + type + ", register it with Connection.register");
+				}
+			}
+			if (offsets[0] != 0 || offsets[n] != m) {
+				throw new IOException(file + " is truncated or corrupt");
+			}
+			for (int i = 0; i < n; i++) {
+				if (offsets[i] > offsets[i + 1]) {
+					throw new IOException(file + " is truncated or corrupt");
+				}
+			}
+			for (int target : targets) {
+				if (target < 0 || target >= n) {
+					throw new IOException(file + " is truncated or corrupt");
+				}
+			}
+			IntIntMap ids = new IntIntMap(n);
+			for (int i = 0; i < n; i++) {
+				if (ids.get(stationIds[i]) != -1) {
+					throw new IOException(file + " has station " + stationIds[i] + " twice");
+				}
+				ids.put(stationIds[i], i);
+			}
+			return new TransitGraph(offsets, targets, distances, times, edgeTypes, deductions, new Connection[m],
+					stationIds, ids);
+		}
+	}
+
+	private static int[] read(IntBuffer ints, int length) {
+		int[] values = new int[length];
+		ints.get(values);
+		return values;
+	}
+}
+
+/**
+ * Hash map from int keys to non-negative int values with open addressing and linear probing. Keys and values are
+ * stored in two int arrays, so neither get nor put boxes anything.
+ */
+class IntIntMap {
+	private int[] keys;
+	private int[] values;
+	private int size;
+
+	IntIntMap(int expectedSize) {
+		// keep the load factor below 0.5
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+		keys = new int[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, -1);
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the value of key or -1 if the map does not contain key
+	 */
+	int get(int key) {
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; values[i] != -1; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param value must not be negative
+	 * @return the previous value of key or -1 if the map did not contain key
+	 */
+	int put(int key, int value) {
+		if (2 * (size + 1) > keys.length) {
+			grow();
+		}
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (values[i] != -1) {
+			if (keys[i] == key) {
+				int previous = values[i];
+				values[i] = value;
+				return previous;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		return -1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		Arrays.fill(values, -1);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != -1) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
+
+/**
+ * Binary min-heap of primitive long entries. An entry stores a non-negative int key in the upper 32 bits and
+ * an int value in the lower 32 bits, hence comparing two entries compares their keys first. Pushing does not
+ * allocate unless the array has to grow.
+ */
+class LongHeap implements StateQueue {
+	private long[] heap = new long[16];
+	private int size;
+
+	static long entry(int key, int value) {
+		return ((long) key << 32) | (value & 0xFFFFFFFFL);
+	}
+
+	static int key(long entry) {
+		return (int) (entry >>> 32);
+	}
+
+	static int value(long entry) {
+		return (int) entry;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	long peek() {
+		return heap[0];
+	}
+
+	@Override
+	public void push(long entry) {
+		if (size == heap.length) {
+			heap = Arrays.copyOf(heap, size * 2);
+		}
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (heap[parent] <= entry) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = entry;
+	}
+
+	@Override
+	public long pop() {
+		long top = heap[0];
+		long last = heap[--size];
+		int i = 0;
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && heap[child + 1] < heap[child]) {
+				child++;
+			}
+			if (last <= heap[child]) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+		return top;
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+	}
+}
+
+/**
+ * Priority queue of the search. Entries are created with LongHeap.entry(distance, state) and pop returns the entry
+ * with the smallest distance.
+ */
+interface StateQueue {
+	boolean isEmpty();
+
+	void push(long entry);
+
+	long pop();
+
+	void clear();
+}
+
+enum QueueType {
+	HEAP, BUCKETS
+}
+
+/**
+ * Indexed 4-ary min-heap with decrease-key. Entries are LongHeap entries whose value is a state and the heap
+ * remembers the index of every queued state. Pushing a state that is already queued only decreases its distance,
+ * hence the heap never contains outdated entries. The position of a state that is not queued may be anything, a state
+ * is in the heap if its position is < size and the entry at this position belongs to the state. So clear is O(1) and
+ * the positions can be reused by the next search without resetting them.
+ */
+class IndexedHeap implements StateQueue {
+	private static final int ARITY = 4;
+
+	private long[] heap = new long[16];
+	private int size;
+
+	// index of the states in heap, owned by the search space
+	private int[] positions = new int[0];
+
+	void usePositions(int[] positions) {
+		this.positions = positions;
+	}
+
+	private boolean contains(int state) {
+		int i = positions[state];
+		return i < size && LongHeap.value(heap[i]) == state;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	long peek() {
+		return heap[0];
+	}
+
+	@Override
+	public void push(long entry) {
+		int state = LongHeap.value(entry);
+		if (contains(state)) {
+			int i = positions[state];
+			if (entry < heap[i]) {
+				siftUp(i, entry);
+			}
+			return;
+		}
+		if (size == heap.length) {
+			heap = Arrays.copyOf(heap, size * 2);
+		}
+		siftUp(size++, entry);
 	}
 
-	public Route shortestPath(Station next, Station end, Connection lastConnection, int time) {
-		if (next == end) {
-            return new Route(time, new ArrayList<>());
+	@Override
+	public long pop() {
+		long top = heap[0];
+		long last = heap[--size];
+		if (size > 0) {
+			siftDown(0, last);
 		}
+		return top;
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+	}
 
-		Route minRoute = null;
-		for (Connection connection : next.getConnections()) {
-			Station station = stationMapping.get(connection.getNextStation());
-			int weight = connection.getTime();
-			if (lastConnection != null && lastConnection.getType() == connection.getType()) {
-				weight -= lastConnection.getDeduction();
+	private void siftUp(int i, long entry) {
+		while (i > 0) {
+			int parent = (i - 1) / ARITY;
+			if (heap[parent] <= entry) {
+				break;
 			}
+			move(parent, i);
+			i = parent;
+		}
+		heap[i] = entry;
+		positions[LongHeap.value(entry)] = i;
+	}
 
-			Route result = shortestPath(station, end, connection, time + weight);
-			boolean betterRoute = minRoute == null || (result != null && result.time < minRoute.time);
-			if (betterRoute) {
-				if (result != null) {
-					result.getConnections().addFirst(connection);
+	private void siftDown(int i, long entry) {
+		while (true) {
+			int first = ARITY * i + 1;
+			if (first >= size) {
+				break;
+			}
+			int min = first;
+			int end = Math.min(first + ARITY, size);
+			for (int child = first + 1; child < end; child++) {
+				if (heap[child] < heap[min]) {
+					min = child;
 				}
-				minRoute = result;
 			}
+			if (entry <= heap[min]) {
+				break;
+			}
+			move(min, i);
+			i = min;
+		}
+		heap[i] = entry;
+		positions[LongHeap.value(entry)] = i;
+	}
+
+	private void move(int from, int to) {
+		heap[to] = heap[from];
+		positions[LongHeap.value(heap[to])] = to;
+	}
+}
+
+/**
+ * Distances, predecessors and queues of one search direction. The arrays are reused by every search of the thread
+ * that owns them. A search remembers which states it reached and the next search only resets those, so a search
+ * costs O(touched states) instead of O(all states) and allocates nothing.
+ */
+class SearchSpace {
+	private int[] distance = new int[0];
+	// edge used to reach the state and the state it was reached from, -1 for the start state
+	private int[] edge = new int[0];
+	private int[] parent = new int[0];
+	// position of the state in the heap
+	private int[] position = new int[0];
+
+	// states that were reached by the current search, only their distance has to be reset
+	private int[] touched = new int[0];
+	private int touchedCount;
+
+	final IndexedHeap heap = new IndexedHeap();
+	private BucketQueue buckets;
+
+	/**
+	 * Start a new search on a graph with this number of states.
+	 */
+	void reset(int states) {
+		if (distance.length < states) {
+			distance = new int[states];
+			Arrays.fill(distance, Integer.MAX_VALUE);
+			edge = new int[states];
+			parent = new int[states];
+			position = new int[states];
+			touched = new int[states];
+			heap.usePositions(position);
+		} else if (touchedCount > distance.length / 8) {
+			// filling the whole array sequentially is faster than resetting many states at random positions
+			Arrays.fill(distance, Integer.MAX_VALUE);
+		} else {
+			for (int i = 0; i < touchedCount; i++) {
+				distance[touched[i]] = Integer.MAX_VALUE;
+			}
+		}
+		touchedCount = 0;
+		heap.clear();
+	}
+
+	/**
+	 * @return the distance of the state in the current search or Integer.MAX_VALUE if it was not reached yet
+	 */
+	int distance(int state) {
+		return distance[state];
+	}
+
+	/**
+	 * @return the edge that was used to reach the state or -1 for the start state
+	 */
+	int edge(int state) {
+		return edge[state];
+	}
+
+	/**
+	 * @return the state from which the state was reached
+	 */
+	int parent(int state) {
+		return parent[state];
+	}
+
+	void set(int state, int distance, int edge, int parent) {
+		if (this.distance[state] == Integer.MAX_VALUE) {
+			touched[touchedCount++] = state;
+		}
+		this.distance[state] = distance;
+		this.edge[state] = edge;
+		this.parent[state] = parent;
+	}
+
+	BucketQueue buckets(int maxWeight) {
+		if (buckets == null || buckets.maxWeight() < maxWeight) {
+			buckets = new BucketQueue(maxWeight);
+		} else {
+			buckets.clear();
+		}
+		return buckets;
+	}
+}
+
+/**
+ * Search spaces of the current thread, so a query does not allocate its arrays again. The arrays are as large as
+ * the largest network that was searched by the thread.
+ */
+class SearchWorkspace {
+	private static final ThreadLocal<SearchWorkspace> WORKSPACES = ThreadLocal.withInitial(SearchWorkspace::new);
+
+	final SearchSpace forward = new SearchSpace();
+	final SearchSpace backward = new SearchSpace();
+
+	static SearchWorkspace get() {
+		return WORKSPACES.get();
+	}
+}
+
+/**
+ * Dial's bucket queue for Dijkstra with small integer weights. Dijkstra only pushes distances in
+ * [current, current + maxWeight], where current is the distance of the last popped entry, so maxWeight + 1 buckets
+ * that are used as a ring are enough. push takes O(1) and all pops together take O(maxWeight + number of pushes).
+ * Only meant for monotone use: a pushed distance must not be smaller than the last popped one.
+ */
+class BucketQueue implements StateQueue {
+	private final int[][] buckets;
+	private final int[] sizes;
+	// distance of the bucket we are currently taking entries from
+	private int current;
+	private int size;
+
+	BucketQueue(int maxWeight) {
+		buckets = new int[maxWeight + 1][];
+		sizes = new int[maxWeight + 1];
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void push(long entry) {
+		int distance = LongHeap.key(entry);
+		if (distance < current || distance - current >= buckets.length) {
+			throw new IllegalArgumentException("Distance " + distance + " is outside of the bucket range");
+		}
+		int bucket = distance % buckets.length;
+		int[] values = buckets[bucket];
+		if (values == null) {
+			values = buckets[bucket] = new int[4];
+		} else if (sizes[bucket] == values.length) {
+			values = buckets[bucket] = Arrays.copyOf(values, values.length * 2);
+		}
+		values[sizes[bucket]++] = LongHeap.value(entry);
+		size++;
+	}
+
+	@Override
+	public long pop() {
+		int bucket = current % buckets.length;
+		while (sizes[bucket] == 0) {
+			current++;
+			bucket = current % buckets.length;
 		}
-		return minRoute;
+		size--;
+		return LongHeap.entry(current, buckets[bucket][--sizes[bucket]]);
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(sizes, 0);
+		current = 0;
+		size = 0;
+	}
+
+	int maxWeight() {
+		return buckets.length - 1;
 	}
 }
 
@@ -52,6 +3715,10 @@ public class Tram extends Connection {
 		super(name, distance);
 	}
 
+	public Tram(int target, int distance) {
+		super(target, distance);
+	}
+
 	@Override
 	public int getTime() {
 		return 20 + Math.max(0, (distance - 5)*5);
@@ -74,6 +3741,10 @@ public class Train extends Connection {
 		super(name, distance);
 	}
 
+	public Train(int target, int distance) {
+		super(target, distance);
+	}
+
 	@Override
 	public int getTime() {
 		return 32 + Math.max(0, (distance - 8)*2);
@@ -90,35 +3761,158 @@ public class Train extends Connection {
 	}
 }
 
+import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Station {
-	private char name;
+	private int id;
+	// optional, e.g. the name of the stop in the timetable
+	private String externalName;
 	private List<Connection> connections;
 
+	// notified after every change of the name or the connections
+	private final List<StationListener> listeners = new CopyOnWriteArrayList<>();
+
 	public Station(char name, List<Connection> connections) {
-		this.name = name;
+		this((int) name, null, connections);
+	}
+
+	/**
+	 * Station of a network that is too large for char names.
+	 *
+	 * The list is used directly, not copied, so connections that are added to it before a TransportSystem is created
+	 * are part of the network, e.g. to build cycles. After that use addConnection and removeConnection, or call
+	 * connectionsChanged after changing the list directly, otherwise the systems do not notice the change.
+	 *
+	 * @param id unique id of the station, the connections to this station use it as their next station
+	 * @param externalName name of the station outside of the network or null
+	 * @param connections must be modifiable if addConnection or removeConnection are used
+	 */
+	public Station(int id, String externalName, List<Connection> connections) {
+		this.id = id;
+		this.externalName = externalName;
 		this.connections = connections;
 	}
 
+	/**
+	 * @throws IllegalStateException if the id of this station is too large for a char
+	 */
 	public char getName() {
-		return name;
+		if (id < Character.MIN_VALUE || id > Character.MAX_VALUE) {
+			throw new IllegalStateException("Station " + id + " has no char name");
+		}
+		return (char) id;
 	}
 
 	public void setName(char name) {
-		this.name = name;
+		setId(name);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+		changed();
 	}
 
+	public String getExternalName() {
+		return externalName;
+	}
+
+	public void setExternalName(String externalName) {
+		this.externalName = externalName;
+	}
+
+	/**
+	 * @return an unmodifiable view of the connections, use addConnection and removeConnection to change them
+	 */
 	public List<Connection> getConnections() {
-		return connections;
+		return Collections.unmodifiableList(connections);
+	}
+
+	public void addConnection(Connection connection) {
+		connections.add(connection);
+		changed();
+	}
+
+	public boolean removeConnection(Connection connection) {
+		boolean removed = connections.remove(connection);
+		if (removed) {
+			changed();
+		}
+		return removed;
+	}
+
+	/**
+	 * Notify the listeners after the list that was passed to the constructor was changed directly.
+	 */
+	public void connectionsChanged() {
+		changed();
+	}
+
+	public void addListener(StationListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(StationListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void changed() {
+		for (StationListener listener : listeners) {
+			listener.stationChanged(this);
+		}
 	}
 
 	@Override
 	public String toString() {
+		String name = externalName != null ? externalName : format(id);
 		return "Station [name=" + name + ", connections=" + connections + "]";
 	}
+
+	/**
+	 * Stations of small networks are named by a letter, so we print ids of letters and digits as char.
+	 */
+	static String format(int id) {
+		if (id >= Character.MIN_VALUE && id <= Character.MAX_VALUE && Character.isLetterOrDigit(id)) {
+			return String.valueOf((char) id);
+		}
+		return String.valueOf(id);
+	}
+}
+
+public interface StationListener {
+	void stationChanged(Station station);
+}
+
+/**
+ * Tells a TransportSystem that one of its stations changed. The system is only referenced weakly, so the listeners at
+ * the stations do not keep a system, its graph and its cache alive. Once the system was garbage collected, the
+ * listener removes itself from every station that notifies it.
+ */
+class InvalidatingListener implements StationListener {
+	private final WeakReference<TransportSystem> system;
+
+	InvalidatingListener(TransportSystem system) {
+		this.system = new WeakReference<>(system);
+	}
+
+	@Override
+	public void stationChanged(Station station) {
+		TransportSystem current = system.get();
+		if (current == null) {
+			station.removeListener(this);
+		} else {
+			current.invalidate();
+		}
+	}
 }
 
+import java.util.Arrays;
 import java.util.List;
 
 public class Route {
@@ -144,11 +3938,24 @@ public class Route {
 }
 
 public abstract class Connection {
-	final char name;
+	// creates the connections of a type that is not known at compile time, e.g. for networks loaded from files
+	public interface Factory {
+		Connection create(int target, int distance);
+	}
+
+	// the index is the type, null if the type is not registered. Replaced as a whole by register()
+	private static volatile Factory[] factories = {Bus::new, Tram::new, Train::new};
+	private static volatile String[] modes = {"bus", "tram", "train"};
+
+	final int target;
 	final int distance;
 
 	public Connection(char name, int distance) {
-		this.name = name;
+		this((int) name, distance);
+	}
+
+	public Connection(int target, int distance) {
+		this.target = target;
 		this.distance = distance;
 	}
 
@@ -156,8 +3963,78 @@ public abstract class Connection {
 		return distance;
 	}
 
+	/**
+	 * @throws IllegalStateException if the id of the next station is too large for a char
+	 */
 	public char getNextStation() {
-		return name;
+		if (target < Character.MIN_VALUE || target > Character.MAX_VALUE) {
+			throw new IllegalStateException("Station " + target + " has no char name");
+		}
+		return (char) target;
+	}
+
+	public int getNextStationId() {
+		return target;
+	}
+
+	/**
+	 * Make a new type of connection known, so that edge lists can use its mode and routes on loaded networks can
+	 * contain it. The search itself works with any type, only networks read from files need the factory. Bus, Tram
+	 * and Train are registered as types 0, 1 and 2.
+	 *
+	 * @param type the value of getType() of the connections of the factory
+	 * @param mode name of the mode in edge lists, the case is ignored
+	 * @throws IllegalArgumentException if the type is negative or the type or the mode is already registered
+	 */
+	public static synchronized void register(int type, String mode, Factory factory) {
+		String name = mode.toLowerCase();
+		if (type < 0 || isRegistered(type)) {
+			throw new IllegalArgumentException("Connection type " + type + " is negative or already registered");
+		}
+		for (String other : modes) {
+			if (name.equals(other)) {
+				throw new IllegalArgumentException("Mode " + mode + " is already registered");
+			}
+		}
+		Factory[] newFactories = Arrays.copyOf(factories, Math.max(factories.length, type + 1));
+		String[] newModes = Arrays.copyOf(modes, newFactories.length);
+		newFactories[type] = factory;
+		newModes[type] = name;
+		// modes first, a reader that sees the new factory also finds its mode
+		modes = newModes;
+		factories = newFactories;
+	}
+
+	static boolean isRegistered(int type) {
+		Factory[] current = factories;
+		return type >= 0 && type < current.length && current[type] != null;
+	}
+
+	/**
+	 * @param type 0 for Bus, 1 for Tram, 2 for Train or a type added with register
+	 * @throws IllegalArgumentException if the type is unknown
+	 */
+	public static Connection create(int type, int target, int distance) {
+		if (!isRegistered(type)) {
+			throw new IllegalArgumentException("Unknown connection type " + type);
+		}
+		return factories[type].create(target, distance);
+	}
+
+	/**
+	 * @param mode Bus, Tram, Train or a mode added with register, the case is ignored
+	 * @return the type of the connections of this mode
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	public static int typeOf(String mode) {
+		String name = mode.toLowerCase();
+		String[] current = modes;
+		for (int type = 0; type < current.length; type++) {
+			if (name.equals(current[type])) {
+				return type;
+			}
+		}
+		throw new IllegalArgumentException("Unknown mode " + mode);
 	}
 
 	public int getTime() {
@@ -170,7 +4047,7 @@ public abstract class Connection {
 
 	@Override
 	public String toString() {
-		return this.getClass().getSimpleName() + "(" + name + ", " + distance + ")";
+		return this.getClass().getSimpleName() + "(" + Station.format(target) + ", " + distance + ")";
 	}
 }
 
@@ -180,6 +4057,10 @@ public class Bus extends Connection {
 		super(name, distance);
 	}
 
+	public Bus(int target, int distance) {
+		super(target, distance);
+	}
+
 	@Override
 	public int getTime() {
 		return 10 + Math.max(0, (distance-2)*7);
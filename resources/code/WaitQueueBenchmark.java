@@ -0,0 +1,109 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures add / pop throughput and latency from 1 to 64 threads for a WaitQueueServer behind one global lock, the
+ * ConcurrentWaitQueueServer and the LockFreeWaitQueueServer. Every thread adds a request on a random fileID and pops
+ * the requests of another random fileID. Requests are popped as fast as they are added, so the queue does not fill up.
+ * A small number of files makes every file hot.
+ */
+public class WaitQueueBenchmark {
+	private static final int CAPACITY = 1 << 16;
+	private static final int OPERATIONS = 1 << 20;
+
+	// The operations that are measured, implemented by every server
+	interface Server {
+		Response add(int fileID, char userID, boolean readOnly);
+
+		char[] pop(int fileID);
+	}
+
+	// ops/ms of all threads together and the 99th percentile of the time of one add / pop pair
+	record Result(double throughput, long p99Nanos) {
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		System.out.printf("%-8s %16s %10s %16s %10s %16s %10s%n", "threads", "global ops/ms", "p99 us",
+				"striped ops/ms", "p99 us", "lock-free ops/ms", "p99 us");
+		for (int threads = 1; threads <= 64; threads *= 2) {
+			WaitQueueServer single = new WaitQueueServer(CAPACITY);
+			Server global = new Server() {
+				public synchronized Response add(int fileID, char userID, boolean readOnly) {
+					return single.add(fileID, userID, readOnly);
+				}
+
+				public synchronized char[] pop(int fileID) {
+					return single.pop(fileID);
+				}
+			};
+			ConcurrentWaitQueueServer concurrent = new ConcurrentWaitQueueServer(CAPACITY);
+			Server striped = new Server() {
+				public Response add(int fileID, char userID, boolean readOnly) {
+					return concurrent.add(fileID, userID, readOnly);
+				}
+
+				public char[] pop(int fileID) {
+					return concurrent.pop(fileID);
+				}
+			};
+			LockFreeWaitQueueServer nonBlocking = new LockFreeWaitQueueServer(CAPACITY);
+			Server lockFree = new Server() {
+				public Response add(int fileID, char userID, boolean readOnly) {
+					return nonBlocking.add(fileID, userID, readOnly);
+				}
+
+				public char[] pop(int fileID) {
+					return nonBlocking.pop(fileID);
+				}
+			};
+			System.out.printf("%-8d", threads);
+			for (Server server : new Server[] {global, striped, lockFree}) {
+				// warm up the JIT
+				run(server, threads, files);
+				Result result = run(server, threads, files);
+				System.out.printf(" %16.0f %10.1f", result.throughput(), result.p99Nanos() / 1e3);
+			}
+			System.out.println();
+		}
+	}
+
+	// Runs OPERATIONS add / pop pairs split over the threads
+	private static Result run(Server server, int threads, int files) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		int perThread = OPERATIONS / threads;
+		long[] latencies = new long[perThread * threads];
+		CountDownLatch start = new CountDownLatch(1);
+		for (int t = 0; t < threads; t++) {
+			int offset = t * perThread;
+			workers[t] = new Thread(() -> {
+				Random random = new Random(offset);
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < perThread; i++) {
+					int fileID = random.nextInt(files);
+					char userID = (char) ('a' + random.nextInt(26));
+					boolean readOnly = random.nextBoolean();
+					int other = random.nextInt(files);
+					long begin = System.nanoTime();
+					server.add(fileID, userID, readOnly);
+					server.pop(other);
+					latencies[offset + i] = System.nanoTime() - begin;
+				}
+			});
+			workers[t].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		double throughput = 2.0 * latencies.length / ((System.nanoTime() - begin) / 1e6);
+		Arrays.sort(latencies);
+		return new Result(throughput, latencies[(int) (0.99 * (latencies.length - 1))]);
+	}
+}
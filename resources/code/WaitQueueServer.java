@@ -1,14 +1,26 @@
-import java.util.ArrayList;
-import java.util.Collections;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class WaitQueueServer {
 
-	private final QueueEntry[] queue;
 	private final int capacity;
 
 	private int currentSize;
 
+	// the queue array with the requests of every fileID and the head and tail index of every fileID
+	private final FileQueues files;
+	// every fileID that has queued requests in ascending order
+	private final SortedIntSet activeFiles = new SortedIntSet();
+	// free indexes of the queue array
+	private final SlotAllocator slots;
+
 	/**
 	 * Initialize the queue array with capacity N
 	 * We also store the capacity of the queue array in the field capacity
@@ -16,14 +28,14 @@ public class WaitQueueServer {
 	 * @param N is the length of the queue array
 	 */
 	public WaitQueueServer(int N) {
-		queue = new QueueEntry[N];
 		capacity = N;
+		files = new FileQueues(new QueueEntry[N], N);
+		slots = new SlotAllocator(N);
 	}
 
 	/**
-	 * We first try to find the first element in the queue array that requests access to fileID.
-	 * We then use the found element to compute the head and tail. We say k = "maximum number of
-	 * elements with fileID". We need at most O(k) time to find the head and tail.
+	 * We look up the head and tail of fileID in the file index, which takes O(1) expected time
+	 * independent of the capacity. The new entry becomes the new tail.
 	 * 
 	 * @param fileID is an integer to identify the file
 	 * @param userID is a char to identify the user
@@ -32,162 +44,156 @@ public class WaitQueueServer {
 	 * type Response which contains the index of the head and the index of the tail. 
 	 */
 	public Response add(int fileID, char userID, boolean readOnly) { 
+		int i = append(fileID, userID, readOnly);
+		if (i == -1) {
+			return null;
+		}
+		return new Response(files.getHead(fileID), i);
+	}
+
+	/**
+	 * Adds the requests (fileIDs[i], userIDs[i], readOnly[i]) for i = 0, ..., count - 1 in this order, exactly
+	 * like count calls of add. Instead of a Response the index of the head and the tail after request i are
+	 * written into heads[i] and tails[i]. Stops as soon as the queue array is full.
+	 * 
+	 * @return the number of requests that were added, count if the queue array did not become full
+	 */
+	public int addAll(int[] fileIDs, char[] userIDs, boolean[] readOnly, int count, int[] heads, int[] tails) {
+		for (int k = 0; k < count; k++) {
+			int i = append(fileIDs[k], userIDs[k], readOnly[k]);
+			if (i == -1) {
+				return k;
+			}
+			heads[k] = files.getHead(fileIDs[k]);
+			tails[k] = i;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the index of the new entry, which is the new tail of fileID, or -1 if the queue array is full
+	 */
+	private int append(int fileID, char userID, boolean readOnly) {
 		// currentSize stores the current number of elements in the array queue
 		if (currentSize == capacity) { // if currentSize == capacity, then queue is full
-			return null;
+			return -1;
 		}
 		// Precondition: currentSize != capacity 
 		// Based on the precondition we know that there will be a free spot in the queue array, hence
 		// we already increase the size of the queue array.
 		currentSize++;
-		QueueEntry firstOccurrence = findFirstOccurringEntry(fileID);
-		QueueEntry head = findHead(firstOccurrence);
-		QueueEntry tail = findTail(firstOccurrence);
 
-		// Find index / position in the queue array that is not used
-		int i = 0;
-		while (queue[i] != null) {
-			i++;
-		}
+		// Take the smallest index / position in the queue array that is not used
+		int i = slots.acquire();
 
-		// Create new entry
-		QueueEntry newEntry = new QueueEntry(i, fileID, userID, readOnly, null, tail);
-		queue[i] = newEntry;
-		// If firstOccurrence == null, then we know that this entry will be the first entry with this fileID
-		if (firstOccurrence == null) {
-			return new Response(i, i);
+		// The new entry is the head if it is the first entry with this fileID
+		if (files.append(i, fileID, userID, readOnly) == i) {
+			activeFiles.add(fileID);
 		}
+		return i;
+	}
 
-		// Update tail
-		if (tail != null) {
-			tail.next = newEntry;
+	// Pop queued request(s) on this fileID
+	// Return format: {userID, ...}
+	public char[] pop(int fileID) {
+		int count = files.releaseCount(fileID);
+		if (count == 0) {
+			return null;
 		}
-		tail = newEntry;
-		return new Response(head.index, tail.index);
+		char[] result = new char[count];
+		release(fileID, result, 0, count);
+		return result;
 	}
 
 	/**
-	 * Find first occurring entry in queue with fileID
-	 * @param fileID that we use to find the relevant element
-	 * @return first occurrence or null if no entry with fileID exists
+	 * Same as pop, but the released userIDs are written into userIDs starting at offset instead of into a new
+	 * array. A buffer with room for N userIDs is always large enough.
+	 * 
+	 * @return the number of userIDs that were written or -1 if there is no request for fileID
+	 * @throws IndexOutOfBoundsException if the released userIDs do not fit, no request is removed in this case
 	 */
-	private QueueEntry findFirstOccurringEntry(int fileID) {
-		for (int i = 0; i < capacity; i++) {
-			QueueEntry entry = queue[i];
-			if (entry != null && entry.fileID == fileID) {
-				return entry;
-			}
+	public int popInto(int fileID, char[] userIDs, int offset) {
+		int count = files.releaseCount(fileID);
+		if (count == 0) {
+			return -1;
 		}
-		return null;
+		Objects.checkFromIndexSize(offset, count, userIDs.length);
+		release(fileID, userIDs, offset, count);
+		return count;
 	}
 
-	private QueueEntry findHead(QueueEntry entry) {
-		if (entry == null) {
-			return null;
-		}
-		if (entry.isHead()) {
-			return entry;
-		}
-		QueueEntry next = entry.prev;
-		// Precondition: entry.prev != null because entry.isHead() is false
-		while (next.prev != null) {
-			next = next.prev;
-		}
-		return next;
-	}
-
-	private QueueEntry findTail(QueueEntry entry) {
-		if (entry == null) {
-			return null;
-		}
-		if (entry.isTail()) {
-			return entry;
-		}
-		QueueEntry next = entry.next;
-		// entry.next != null because entry.isTail() is false
-		while (next.next != null) {
-			next = next.next;
+	/**
+	 * Pops fileIDs[0], ..., fileIDs[count - 1] in this order. The released userIDs of all of them are written one
+	 * after the other into userIDs, counts[i] is the number of userIDs released for fileIDs[i] (0 if there was no
+	 * request). Stops before the first fileID whose userIDs do not fit into userIDs anymore, so the call can be
+	 * repeated with the remaining fileIDs.
+	 * 
+	 * @return the number of fileIDs that were popped, count if all userIDs did fit
+	 */
+	public int popAll(int[] fileIDs, int count, char[] userIDs, int[] counts) {
+		int written = 0;
+		for (int k = 0; k < count; k++) {
+			int released = files.releaseCount(fileIDs[k]);
+			if (released > userIDs.length - written) {
+				return k;
+			}
+			counts[k] = released;
+			if (released == 0) {
+				continue;
+			}
+			release(fileIDs[k], userIDs, written, released);
+			written += released;
 		}
-		return next;
+		return count;
 	}
 
-	// Pop queued request(s) on this fileID
-	// Return format: {userID, ...}
-	public char[] pop(int fileID) {
-		QueueEntry head = findHead(findFirstOccurringEntry(fileID));
-		if (head == null) {
-			return null;
+	/**
+	 * Removes the count requests a pop of fileID releases, writes their userIDs into userIDs starting at offset and
+	 * frees their indexes. The file is removed from activeFiles if it has no request left.
+	 */
+	private void release(int fileID, char[] userIDs, int offset, int count) {
+		if (files.release(fileID, userIDs, offset)) {
+			activeFiles.remove(fileID);
 		}
-		if (head.readOnly) {
-			LinkedList<Character> interResult = new LinkedList<>();
-			QueueEntry next = head;
-			while (next != null) {
-				if (!next.readOnly) {
-					next = next.next;
-					continue;
-				}
-				interResult.add(next.userID);
-				remove(next);
-				next = next.next;
-			}
-			return linkedListToCharArray(interResult);
-		} else {
-			remove(head);
-			return new char[] {head.userID};
+		int[] released = files.released();
+		for (int k = 0; k < count; k++) {
+			slots.release(released[k]);
 		}
+		currentSize -= count;
 	}
 
 	public char[] linkedListToCharArray(LinkedList<Character> list) {
 		char[] charArray = new char[list.size()];
-		for (int i = 0; i < list.size(); i++) {
-			charArray[i] = list.get(i);
+		int i = 0;
+		// list.get(i) would walk the list from the start every time
+		for (char userID : list) {
+			charArray[i++] = userID;
 		}
 		return charArray;
 	}
 
 	public void remove(QueueEntry entry) {
-		// If prev element exists
-		if (entry.prev != null) {
-			entry.prev.next = entry.next;
-		}
-		// If next element exists
-		if (entry.next != null) {
-			entry.next.prev = entry.prev;
-		}
+		boolean last = files.remove(entry);
 		currentSize--;
-		queue[entry.index] = null;
+		slots.release(entry.index);
+		if (last) {
+			activeFiles.remove(entry.fileID);
+		}
 	}
 
 	// Get a quick reference list on all queued files, and the list is sorted by fileID
 	// Return format: {{fileID, head, tail}, {...}, ...}
+	// The active fileIDs are already sorted, so this is one walk over them and needs O(F) time for F files.
 	public int[][] getQuickList() {
 		if (currentSize == 0) {
 			return null;
 		}
 
-		// find and store distinct fileIDs. âˆ€u,v âˆˆ fileIDs: u â‰  v
-		// Would be more efficient with TreeSet, because ArrayList.contains() needs O(n) time where n is the size of the ArrayList
-		ArrayList<Integer> fileIDs = new ArrayList<>();
-		for (int i = 0; i < capacity; i++) {
-			QueueEntry entry = queue[i];
-			if (entry != null && !fileIDs.contains(entry.fileID)) {
-				fileIDs.add(entry.fileID);
-			}
-		}
-		Collections.sort(fileIDs);
-
-		int size = fileIDs.size();
-		int[][] result = new int[size][3];
-		for (int i = 0; i < size; i++) {
-			int fileID = fileIDs.get(i);
-			QueueEntry firstOccurrence = findFirstOccurringEntry(fileID);
-			QueueEntry head = findHead(firstOccurrence);
-			QueueEntry tail = findTail(firstOccurrence);
-			result[i][0] = fileID;
-			result[i][1] = head.index;
-			result[i][2] = tail.index;
+		int[][] result = new int[activeFiles.size()][];
+		for (int i = 0; i < result.length; i++) {
+			int fileID = activeFiles.get(i);
+			result[i] = new int[] {fileID, files.getHead(fileID), files.getTail(fileID)};
 		}
-
 		return result;
 	}
 }
@@ -243,3 +249,984 @@ class QueueEntry {
 		return this.next == null;
 	}
 }
+
+/**
+ * The requests of every fileID as a doubly linked list of QueueEntry objects in the queue array, together with the
+ * head and tail index of every fileID. These are the list operations that WaitQueueServer and every stripe of
+ * ConcurrentWaitQueueServer share. The free indexes of the queue array are managed by the caller: it passes the index
+ * of a new request to append and frees the indexes in released() after a release.
+ */
+class FileQueues {
+	private final QueueEntry[] queue;
+	// head and tail index of every fileID that has queued requests
+	private final FileIndex files;
+	// indexes of the requests removed by the last release, in the order of their userIDs
+	private int[] released = new int[16];
+
+	public FileQueues(QueueEntry[] queue, int expectedFiles) {
+		this.queue = queue;
+		files = new FileIndex(expectedFiles);
+	}
+
+	/**
+	 * @return the index of the head of fileID or -1 if there is no request for fileID
+	 */
+	public int getHead(int fileID) {
+		return files.getHead(fileID);
+	}
+
+	/**
+	 * @return the index of the tail of fileID or -1 if there is no request for fileID
+	 */
+	public int getTail(int fileID) {
+		return files.getTail(fileID);
+	}
+
+	/**
+	 * Appends a request as the new tail of fileID.
+	 * 
+	 * @param i a free index of the queue array
+	 * @return the index of the head of fileID, which is i if this is its first request
+	 */
+	public int append(int i, int fileID, char userID, boolean readOnly) {
+		int head = files.getHead(fileID);
+
+		// If head == -1, then we know that this entry will be the first entry with this fileID
+		if (head == -1) {
+			queue[i] = new QueueEntry(i, fileID, userID, readOnly, null, null);
+			files.put(fileID, i, i);
+			return i;
+		}
+
+		// Append the new entry after the tail and update the tail
+		QueueEntry tail = queue[files.getTail(fileID)];
+		QueueEntry newEntry = new QueueEntry(i, fileID, userID, readOnly, null, tail);
+		queue[i] = newEntry;
+		tail.next = newEntry;
+		files.put(fileID, head, i);
+		return head;
+	}
+
+	/**
+	 * Number of requests a pop releases: only the head if it needs write access, otherwise every read-only request.
+	 * 
+	 * @return the number of requests or 0 if there is no request for fileID
+	 */
+	public int releaseCount(int fileID) {
+		int headIndex = files.getHead(fileID);
+		if (headIndex == -1) {
+			return 0;
+		}
+		QueueEntry head = queue[headIndex];
+		if (!head.readOnly) {
+			return 1;
+		}
+		int count = 0;
+		for (QueueEntry next = head; next != null; next = next.next) {
+			if (next.readOnly) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Removes the requests a pop of fileID releases and writes their userIDs into userIDs starting at offset. Their
+	 * indexes are in released() afterwards. fileID must have a request.
+	 * 
+	 * @return true if fileID has no request left
+	 */
+	public boolean release(int fileID, char[] userIDs, int offset) {
+		QueueEntry head = queue[files.getHead(fileID)];
+		if (!head.readOnly) {
+			userIDs[offset] = head.userID;
+			released[0] = head.index;
+			return remove(head);
+		}
+		boolean empty = false;
+		int count = 0;
+		// remove does not change next.next, so we can continue with it
+		for (QueueEntry next = head; next != null; next = next.next) {
+			if (next.readOnly) {
+				userIDs[offset++] = next.userID;
+				if (count == released.length) {
+					released = Arrays.copyOf(released, 2 * count);
+				}
+				released[count++] = next.index;
+				empty = remove(next);
+			}
+		}
+		return empty;
+	}
+
+	/**
+	 * @return the indexes of the requests removed by the last release, only the first releaseCount are valid
+	 */
+	public int[] released() {
+		return released;
+	}
+
+	/**
+	 * Removes entry from its list, the file index and the queue array. Its index is not freed.
+	 * 
+	 * @return true if entry was the last request of its file
+	 */
+	public boolean remove(QueueEntry entry) {
+		// If prev element exists
+		if (entry.prev != null) {
+			entry.prev.next = entry.next;
+		}
+		// If next element exists
+		if (entry.next != null) {
+			entry.next.prev = entry.prev;
+		}
+		// Keep the file index up to date if the head or the tail is removed
+		boolean last = entry.isHead() && entry.isTail();
+		if (last) {
+			files.remove(entry.fileID);
+		} else if (entry.isHead()) {
+			files.put(entry.fileID, entry.next.index, files.getTail(entry.fileID));
+		} else if (entry.isTail()) {
+			files.put(entry.fileID, files.getHead(entry.fileID), entry.prev.index);
+		}
+		queue[entry.index] = null;
+		return last;
+	}
+}
+
+/**
+ * Maps a fileID to the index of the head and the index of the tail of its requests in the queue array.
+ * Open addressing with linear probing on three int arrays, so no lookup creates an object. The table is
+ * kept at most half full, it starts with room for the expected number of fileIDs and doubles if more are
+ * added. A slot is free if its head is -1. Removing a fileID moves the following entries of its probe
+ * sequence back, so there are no deleted markers that would make lookups slower over time.
+ */
+class FileIndex {
+	private int[] keys;
+	private int[] heads;
+	private int[] tails;
+	private int mask;
+	// number of fileIDs in the table
+	private int size;
+
+	public FileIndex(int expectedFiles) {
+		allocate(Integer.highestOneBit(Math.max(2, 2 * expectedFiles - 1)) << 1);
+	}
+
+	private void allocate(int length) {
+		keys = new int[length];
+		heads = new int[length];
+		tails = new int[length];
+		mask = length - 1;
+		Arrays.fill(heads, -1);
+	}
+
+	/**
+	 * @return the index of the head of fileID or -1 if there is no request for fileID
+	 */
+	public int getHead(int fileID) {
+		int slot = find(fileID);
+		return slot == -1 ? -1 : heads[slot];
+	}
+
+	/**
+	 * @return the index of the tail of fileID or -1 if there is no request for fileID
+	 */
+	public int getTail(int fileID) {
+		int slot = find(fileID);
+		return slot == -1 ? -1 : tails[slot];
+	}
+
+	public void put(int fileID, int head, int tail) {
+		int slot = hash(fileID);
+		while (heads[slot] != -1 && keys[slot] != fileID) {
+			slot = (slot + 1) & mask;
+		}
+		if (heads[slot] == -1) {
+			if (2 * (size + 1) > keys.length) {
+				grow();
+				put(fileID, head, tail);
+				return;
+			}
+			size++;
+		}
+		keys[slot] = fileID;
+		heads[slot] = head;
+		tails[slot] = tail;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldHeads = heads;
+		int[] oldTails = tails;
+		allocate(2 * oldKeys.length);
+		size = 0;
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldHeads[slot] != -1) {
+				put(oldKeys[slot], oldHeads[slot], oldTails[slot]);
+			}
+		}
+	}
+
+	public void remove(int fileID) {
+		int slot = find(fileID);
+		if (slot == -1) {
+			return;
+		}
+		// Move back every following entry that may no longer be found after the gap
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while (heads[next] != -1) {
+			int home = hash(keys[next]);
+			// The entry at next may fill the gap if its home slot is not between gap and next
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				heads[gap] = heads[next];
+				tails[gap] = tails[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		heads[gap] = -1;
+		size--;
+	}
+
+	private int find(int fileID) {
+		int slot = hash(fileID);
+		while (heads[slot] != -1) {
+			if (keys[slot] == fileID) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int hash(int fileID) {
+		// fileIDs are often consecutive, multiplying and folding spreads them over the table
+		int h = fileID * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
+
+/**
+ * A set of ints kept as a sorted array, so the values are stored without boxing and can be read in ascending order
+ * by position. add and remove find the position with a binary search and move the larger values by one with
+ * System.arraycopy. The array starts small and doubles when it is full.
+ */
+class SortedIntSet {
+	private int[] values = new int[16];
+	private int size;
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the i-th smallest value, i must be smaller than size()
+	 */
+	public int get(int i) {
+		Objects.checkIndex(i, size);
+		return values[i];
+	}
+
+	/**
+	 * @return false if value was already in the set
+	 */
+	public boolean add(int value) {
+		int i = Arrays.binarySearch(values, 0, size, value);
+		if (i >= 0) {
+			return false;
+		}
+		i = -i - 1;
+		if (size == values.length) {
+			values = Arrays.copyOf(values, 2 * size);
+		}
+		System.arraycopy(values, i, values, i + 1, size - i);
+		values[i] = value;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return false if value was not in the set
+	 */
+	public boolean remove(int value) {
+		int i = Arrays.binarySearch(values, 0, size, value);
+		if (i < 0) {
+			return false;
+		}
+		System.arraycopy(values, i + 1, values, i, size - i - 1);
+		size--;
+		return true;
+	}
+}
+
+/**
+ * Keeps track of the free indexes of the queue array and always hands out the smallest one, exactly like
+ * scanning the array from the front. On the lowest level one bit per index is set if the index is free.
+ * A bit on the next level is set if the corresponding word below still has a free bit, and so on until a
+ * single word is left. Finding the smallest free index walks down one word per level with
+ * Long.numberOfTrailingZeros, so a queue of 16 million entries needs only 4 steps no matter how full it is.
+ */
+class SlotAllocator {
+	// levels[0] has one bit per index, the last level is a single word
+	private final long[][] levels;
+
+	public SlotAllocator(int capacity) {
+		int count = 1;
+		for (int n = capacity; n > 64; n = (n + 63) >>> 6) {
+			count++;
+		}
+		levels = new long[count][];
+		int bits = capacity;
+		for (int level = 0; level < count; level++) {
+			long[] words = new long[Math.max(1, (bits + 63) >>> 6)];
+			// Every index, and every word below, starts out free
+			for (int i = 0; i < bits; i++) {
+				words[i >>> 6] |= 1L << i;
+			}
+			levels[level] = words;
+			bits = words.length;
+		}
+	}
+
+	/**
+	 * Marks the smallest free index as used.
+	 * 
+	 * @return the smallest free index or -1 if every index is used
+	 */
+	public int acquire() {
+		int top = levels.length - 1;
+		if (levels[top][0] == 0) {
+			return -1;
+		}
+		int index = 0;
+		for (int level = top; level >= 0; level--) {
+			index = (index << 6) + Long.numberOfTrailingZeros(levels[level][index]);
+		}
+		// Clear the bit, and the bits above as long as the word below has become empty
+		int i = index;
+		for (int level = 0; level <= top; level++) {
+			long[] words = levels[level];
+			words[i >>> 6] &= ~(1L << i);
+			if (words[i >>> 6] != 0) {
+				break;
+			}
+			i >>>= 6;
+		}
+		return index;
+	}
+
+	/**
+	 * Marks the index as free again.
+	 */
+	public void release(int index) {
+		int i = index;
+		for (long[] words : levels) {
+			boolean wasEmpty = words[i >>> 6] == 0;
+			words[i >>> 6] |= 1L << i;
+			if (!wasEmpty) {
+				break;
+			}
+			i >>>= 6;
+		}
+	}
+}
+
+/**
+ * A WaitQueueServer that can be used by many threads at the same time. The fileIDs are spread over a number
+ * of stripes, every stripe has its own lock and its own FileQueues over the shared queue array. Requests on fileIDs
+ * of different stripes therefore never wait for each other, only taking and giving back indexes of the queue array is
+ * done under one lock of the slot allocator. That critical section is only a few steps long.
+ * 
+ * The requests of one fileID are appended and removed under the lock of its stripe, so they are popped in the
+ * same order in which the add calls got the lock (FIFO per fileID). add takes its index from the slot allocator before
+ * it locks the stripe and pop gives the indexes back after it unlocked the stripe, so the allocator lock is never held
+ * together with a stripe lock. getQuickList takes all stripe locks in ascending order, hence there are no deadlocks.
+ */
+class ConcurrentWaitQueueServer {
+	// guarded by itself
+	private final SlotAllocator slots;
+
+	// stripe s guards files[s] and every entry of a fileID in stripe s
+	private final ReentrantLock[] locks;
+	private final FileQueues[] files;
+	private final int stripeMask;
+	// every fileID that has queued requests in ascending order, changed under the lock of the stripe of the fileID
+	private final ConcurrentSkipListSet<Integer> activeFiles = new ConcurrentSkipListSet<>();
+
+	public ConcurrentWaitQueueServer(int N) {
+		this(N, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param N is the length of the queue array
+	 * @param stripes is rounded up to a power of two
+	 */
+	public ConcurrentWaitQueueServer(int N, int stripes) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("At least one stripe is needed: " + stripes);
+		}
+		QueueEntry[] queue = new QueueEntry[N];
+		slots = new SlotAllocator(N);
+		int count = Integer.highestOneBit(Math.max(1, 2 * stripes - 1));
+		locks = new ReentrantLock[count];
+		files = new FileQueues[count];
+		for (int s = 0; s < count; s++) {
+			locks[s] = new ReentrantLock();
+			files[s] = new FileQueues(queue, Math.max(1, N / count));
+		}
+		stripeMask = count - 1;
+	}
+
+	/**
+	 * Same as WaitQueueServer.add, the index is taken from the slot allocator before the stripe is locked.
+	 */
+	public Response add(int fileID, char userID, boolean readOnly) {
+		int i;
+		synchronized (slots) {
+			i = slots.acquire();
+		}
+		if (i == -1) { // queue is full
+			return null;
+		}
+		int stripe = stripe(fileID);
+		ReentrantLock lock = locks[stripe];
+		lock.lock();
+		try {
+			int head = files[stripe].append(i, fileID, userID, readOnly);
+			if (head == i) {
+				activeFiles.add(fileID);
+			}
+			return new Response(head, i);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Same as WaitQueueServer.pop, all released indexes are given back to the slot allocator at once.
+	 */
+	public char[] pop(int fileID) {
+		int stripe = stripe(fileID);
+		ReentrantLock lock = locks[stripe];
+		int[] released;
+		char[] result;
+		lock.lock();
+		try {
+			FileQueues queues = files[stripe];
+			int count = queues.releaseCount(fileID);
+			if (count == 0) {
+				return null;
+			}
+			result = new char[count];
+			if (queues.release(fileID, result, 0)) {
+				activeFiles.remove(fileID);
+			}
+			released = Arrays.copyOf(queues.released(), count);
+		} finally {
+			lock.unlock();
+		}
+		synchronized (slots) {
+			for (int i : released) {
+				slots.release(i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Same as WaitQueueServer.getQuickList. All stripes are locked while the list is built, so it is a consistent
+	 * view of the queue at one point in time and the set of active fileIDs does not change during the walk.
+	 */
+	public int[][] getQuickList() {
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+		}
+		try {
+			// An index can be taken but not yet filled by a concurrent add, such entries are not in the list yet
+			if (activeFiles.isEmpty()) {
+				return null;
+			}
+			int[][] result = new int[activeFiles.size()][];
+			int i = 0;
+			for (int fileID : activeFiles) {
+				FileQueues queues = files[stripe(fileID)];
+				result[i++] = new int[] {fileID, queues.getHead(fileID), queues.getTail(fileID)};
+			}
+			return result;
+		} finally {
+			for (int s = locks.length - 1; s >= 0; s--) {
+				locks[s].unlock();
+			}
+		}
+	}
+
+	private int stripe(int fileID) {
+		int h = fileID * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & stripeMask;
+	}
+}
+
+/**
+ * A WaitQueueServer in which no thread ever waits for a lock. Every fileID has its own non-blocking FIFO queue
+ * (Michael-Scott queue), the free indexes are kept on a lock-free stack. Taking an index from that stack is the
+ * capacity check: if it is empty the queue is full and add returns null.
+ * 
+ * A request is released by flipping its claimed flag with a CAS, the node is unlinked later when it reaches the
+ * front of its queue. This way pop can release the read-only requests behind a write request, just like
+ * WaitQueueServer.pop, without taking them out of the middle of the list. Pops of the same fileID claim their
+ * requests one after the other (see RequestQueue.pop), so a pop that runs at the same time as another one sees either
+ * all requests of the other pop released or none of them, never a part of a read-only batch.
+ * 
+ * Differences to WaitQueueServer: the indexes are unique among the queued requests and smaller than N, but not always
+ * the smallest free ones. The head in the Response of add and the result of getQuickList are snapshots that can be
+ * outdated by concurrent operations.
+ * 
+ * A pop that leaves the queue of its fileID empty closes it and removes it from files, so files only holds the
+ * fileIDs that have requests and the ones that are popped right now. An add that finds a closed queue retries with a
+ * new one.
+ */
+class LockFreeWaitQueueServer {
+	// Lookups use the key of the calling thread, the map keeps the key of each queue
+	private static final ThreadLocal<FileKey> LOOKUP = ThreadLocal.withInitial(FileKey::new);
+
+	private final ConcurrentHashMap<FileKey, RequestQueue> files = new ConcurrentHashMap<>();
+	private final SlotStack slots;
+
+	public LockFreeWaitQueueServer(int N) {
+		slots = new SlotStack(N);
+	}
+
+	public Response add(int fileID, char userID, boolean readOnly) {
+		int i = slots.acquire();
+		if (i == -1) { // queue is full
+			return null;
+		}
+		RequestNode node = new RequestNode(i, userID, readOnly);
+		RequestQueue queue;
+		while (true) {
+			queue = files.get(lookup(fileID));
+			if (queue == null) {
+				RequestQueue created = new RequestQueue(fileID);
+				queue = files.putIfAbsent(created.key, created);
+				if (queue == null) {
+					queue = created;
+				}
+			}
+			if (queue.enqueue(node)) {
+				break;
+			}
+			// A pop closed the queue, it may not be removed from files yet
+			files.remove(queue.key, queue);
+		}
+		RequestNode head = queue.first();
+		// head == null if our request has already been popped
+		return new Response(head == null ? i : head.index, i);
+	}
+
+	public char[] pop(int fileID) {
+		RequestQueue queue = files.get(lookup(fileID));
+		if (queue == null) {
+			return null;
+		}
+		PopBatch batch = queue.pop();
+		if (queue.close()) {
+			files.remove(queue.key, queue);
+		}
+		if (batch == null) {
+			return null;
+		}
+		RequestNode last = batch.last();
+		char[] result = new char[4];
+		int count = 0;
+		for (RequestNode next = batch.first(); ; next = next.next) {
+			if (next.isClaimedBy(batch)) {
+				slots.release(next.index);
+				if (count == result.length) {
+					result = Arrays.copyOf(result, 2 * count);
+				}
+				result[count++] = next.userID;
+			}
+			if (next == last) {
+				return count == result.length ? result : Arrays.copyOf(result, count);
+			}
+		}
+	}
+
+	/**
+	 * Same format as WaitQueueServer.getQuickList, but only a snapshot: requests that are added or popped while the
+	 * list is built may or may not be part of it.
+	 */
+	public int[][] getQuickList() {
+		int[][] result = new int[files.size()][];
+		int rows = 0;
+		for (RequestQueue queue : files.values()) {
+			int head = -1;
+			int tail = -1;
+			// a closed queue ends with RequestQueue.CLOSED, which is claimed
+			for (RequestNode next = queue.first(); next != null; next = next.next) {
+				if (!next.isClaimed()) {
+					if (head == -1) {
+						head = next.index;
+					}
+					tail = next.index;
+				}
+			}
+			if (head != -1) {
+				if (rows == result.length) {
+					result = Arrays.copyOf(result, 2 * rows + 1);
+				}
+				result[rows++] = new int[] {queue.key.fileID, head, tail};
+			}
+		}
+		if (rows == 0) {
+			return null;
+		}
+		result = Arrays.copyOf(result, rows);
+		Arrays.sort(result, (a, b) -> Integer.compare(a[0], b[0]));
+		return result;
+	}
+
+	private static FileKey lookup(int fileID) {
+		FileKey key = LOOKUP.get();
+		key.fileID = fileID;
+		return key;
+	}
+}
+
+/**
+ * Key of a fileID in LockFreeWaitQueueServer.files, so add and pop do not box an Integer for every lookup. A key in
+ * the map is never changed, a lookup key is only changed by the thread it belongs to.
+ */
+class FileKey {
+	int fileID;
+
+	FileKey() {
+	}
+
+	FileKey(int fileID) {
+		this.fileID = fileID;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof FileKey other && other.fileID == fileID;
+	}
+
+	@Override
+	public int hashCode() {
+		return fileID;
+	}
+}
+
+/**
+ * A request in a RequestQueue. It stays linked after it is claimed until it becomes the front of the queue.
+ */
+class RequestNode {
+	private static final VarHandle NEXT;
+	private static final VarHandle OWNER;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			NEXT = lookup.findVarHandle(RequestNode.class, "next", RequestNode.class);
+			OWNER = lookup.findVarHandle(RequestNode.class, "owner", PopBatch.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	final int index;
+	final char userID;
+	final boolean readOnly;
+	volatile RequestNode next;
+	// the pop that released this request, null while it is queued
+	private volatile PopBatch owner;
+
+	RequestNode(int index, char userID, boolean readOnly) {
+		this.index = index;
+		this.userID = userID;
+		this.readOnly = readOnly;
+	}
+
+	boolean casNext(RequestNode expected, RequestNode node) {
+		return NEXT.compareAndSet(this, expected, node);
+	}
+
+	/**
+	 * @return true if this call released the request for batch, false if it was already released
+	 */
+	boolean claim(PopBatch batch) {
+		return owner == null && OWNER.compareAndSet(this, null, batch);
+	}
+
+	boolean isClaimed() {
+		return owner != null;
+	}
+
+	boolean isClaimedBy(PopBatch batch) {
+		return owner == batch;
+	}
+}
+
+/**
+ * Michael-Scott queue of the requests of one fileID. head is a dummy node, the requests start at head.next. Claimed
+ * requests at the front are unlinked by whichever thread finds them there first.
+ * 
+ * At most one pop is in progress per queue. A pop publishes its PopBatch in popping and every other pop completes
+ * that batch before it publishes its own one, so pops never claim requests at the same time.
+ */
+class RequestQueue {
+	private static final VarHandle HEAD;
+	private static final VarHandle TAIL;
+	private static final VarHandle POPPING;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			HEAD = lookup.findVarHandle(RequestQueue.class, "head", RequestNode.class);
+			TAIL = lookup.findVarHandle(RequestQueue.class, "tail", RequestNode.class);
+			POPPING = lookup.findVarHandle(RequestQueue.class, "popping", PopBatch.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// Linked behind the last node when the queue is closed, nothing can be enqueued after it
+	static final RequestNode CLOSED = new RequestNode(-1, '\0', false);
+
+	static {
+		CLOSED.claim(new PopBatch());
+	}
+
+	final FileKey key;
+
+	private volatile RequestNode head;
+	private volatile RequestNode tail;
+	// the pop that is in progress or null
+	private volatile PopBatch popping;
+
+	RequestQueue(int fileID) {
+		key = new FileKey(fileID);
+		head = tail = new RequestNode(-1, '\0', false);
+	}
+
+	/**
+	 * @return false if the queue is closed, the request has to go into a new queue then
+	 */
+	boolean enqueue(RequestNode node) {
+		while (true) {
+			RequestNode last = tail;
+			RequestNode next = last.next;
+			if (next == null) {
+				if (last.casNext(null, node)) {
+					TAIL.compareAndSet(this, last, node);
+					return true;
+				}
+			} else if (next == CLOSED) {
+				return false;
+			} else { // tail is behind, help the other add
+				TAIL.compareAndSet(this, last, next);
+			}
+		}
+	}
+
+	/**
+	 * Closes the queue if it has no unclaimed request. Requests that are claimed but not returned by their pop yet are
+	 * no longer needed in the queue.
+	 * 
+	 * @return true if this call closed the queue
+	 */
+	boolean close() {
+		while (true) {
+			if (first() != null) {
+				return false;
+			}
+			RequestNode dummy = head;
+			RequestNode next = dummy.next;
+			if (next == CLOSED) { // another pop was faster
+				return false;
+			}
+			// next != null if a request was added or the front is claimed but still linked, then look again
+			if (next == null && dummy.casNext(null, CLOSED)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest request that is not claimed or null if there is none
+	 */
+	RequestNode first() {
+		while (true) {
+			RequestNode dummy = head;
+			RequestNode first = dummy.next;
+			if (first == null || first == CLOSED) {
+				return null;
+			}
+			if (!first.isClaimed()) {
+				return first;
+			}
+			// first is released, it becomes the new dummy. tail must never fall behind head
+			RequestNode last = tail;
+			if (last == dummy) {
+				TAIL.compareAndSet(this, dummy, first);
+			}
+			HEAD.compareAndSet(this, dummy, first);
+		}
+	}
+
+	// The last node, the dummy if the queue is empty
+	private RequestNode last() {
+		RequestNode last = tail;
+		for (RequestNode next = last.next; next != null && next != CLOSED; next = next.next) {
+			last = next;
+		}
+		return last;
+	}
+
+	/**
+	 * Claims the requests one WaitQueueServer.pop releases: the oldest request if it needs write access, otherwise
+	 * every read-only request. The claimed requests are the ones between first and last of the batch that are claimed
+	 * by it.
+	 * 
+	 * @return the completed batch or null if there is no request
+	 */
+	PopBatch pop() {
+		PopBatch batch = new PopBatch();
+		while (true) {
+			PopBatch current = popping;
+			if (current != null) { // finish the other pop first, it may be stalled
+				complete(current);
+			} else if (POPPING.compareAndSet(this, null, batch)) {
+				break;
+			}
+		}
+		complete(batch);
+		return batch.first() == null ? null : batch;
+	}
+
+	// Can run in several threads for the same batch, also after the batch is completed
+	private void complete(PopBatch batch) {
+		if (!batch.isStarted()) {
+			// No other pop claims requests now. first stays the oldest unclaimed request until this batch claims it
+			RequestNode first = first();
+			if (first == null) {
+				batch.setRange(PopBatch.EMPTY);
+			} else {
+				batch.setRange(new RequestNode[] {first, first.readOnly ? last() : first});
+			}
+		}
+		RequestNode first = batch.first();
+		if (first != null) {
+			RequestNode last = batch.last();
+			if (!first.readOnly) {
+				first.claim(batch);
+			} else {
+				// Requests of earlier batches are claimed already, requests added after last are not part of this one
+				for (RequestNode next = first; ; next = next.next) {
+					if (next.readOnly) {
+						next.claim(batch);
+					}
+					if (next == last) {
+						break;
+					}
+				}
+			}
+		}
+		POPPING.compareAndSet(this, batch, null);
+	}
+}
+
+/**
+ * The requests released by one pop of a RequestQueue. The range is set once by whichever thread completes the batch
+ * first, every thread that helps completing it claims the requests in that range.
+ */
+class PopBatch {
+	static final RequestNode[] EMPTY = {null, null};
+
+	private static final VarHandle RANGE;
+
+	static {
+		try {
+			RANGE = MethodHandles.lookup().findVarHandle(PopBatch.class, "range", RequestNode[].class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// {first, last}, null until the batch is started
+	private volatile RequestNode[] range;
+
+	boolean isStarted() {
+		return range != null;
+	}
+
+	void setRange(RequestNode[] range) {
+		RANGE.compareAndSet(this, null, range);
+	}
+
+	// The oldest request of the batch, null if the batch is empty or not started yet
+	RequestNode first() {
+		RequestNode[] range = this.range;
+		return range == null ? null : range[0];
+	}
+
+	RequestNode last() {
+		RequestNode[] range = this.range;
+		return range == null ? null : range[1];
+	}
+}
+
+/**
+ * Lock-free stack (Treiber stack) of the free indexes 0, ..., N - 1. The top is stored together with a counter that
+ * is increased on every change, so a CAS fails if the stack changed in between even if the same index is on top
+ * again (ABA problem).
+ */
+class SlotStack {
+	// next[i] is the free index below i, or -1
+	private final int[] next;
+	// upper 32 bits: counter, lower 32 bits: top index or -1 if the stack is empty
+	private final AtomicLong top;
+
+	SlotStack(int capacity) {
+		next = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			next[i] = i + 1 < capacity ? i + 1 : -1;
+		}
+		top = new AtomicLong(capacity == 0 ? 0xFFFFFFFFL : 0);
+	}
+
+	/**
+	 * @return a free index or -1 if every index is used
+	 */
+	int acquire() {
+		while (true) {
+			long current = top.get();
+			int i = (int) current;
+			if (i == -1) {
+				return -1;
+			}
+			// next[i] may be outdated if the stack changes, but then the counter differs and the CAS fails
+			if (top.compareAndSet(current, pack(current, next[i]))) {
+				return i;
+			}
+		}
+	}
+
+	void release(int i) {
+		while (true) {
+			long current = top.get();
+			next[i] = (int) current;
+			if (top.compareAndSet(current, pack(current, i))) {
+				return;
+			}
+		}
+	}
+
+	private static long pack(long current, int index) {
+		return ((current >>> 32) + 1) << 32 | (index & 0xFFFFFFFFL);
+	}
+}